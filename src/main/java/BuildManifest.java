@@ -0,0 +1,348 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.CodeSource;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Persistent record of what the last build read and wrote, for incremental batch builds.
+ * Every built output has one entry keyed by its input path, holding the input's size, mtime and
+ * SHA-256, the compiler version that built it and the output's path, size and mtime. A .par is keyed
+ * by the .lex it was parsed from, so rebuilding a .lex makes its .par stale without extra bookkeeping.
+ * <p>
+ * An output is up to date when its entry exists, the compiler version matches and both files still
+ * have the recorded size and mtime, which costs one attribute read per file. If only the input's mtime
+ * changed, its hash is compared before rebuilding, so touched-but-unchanged sources are not recompiled.
+ * The manifest is a tab-separated text file, rewritten atomically and only when something changed.
+ * Main --incremental turns it on; Lexer.main and Parser.main consult it while it is enabled.
+ */
+class BuildManifest {
+    static final File DEFAULT_FILE = new File("build/incremental/manifest.tsv");
+    private static final String HEADER = "# minicompiler build manifest v1";
+
+    /**
+     * One built output and the input it was built from.
+     */
+    static class Entry {
+        final String input;
+        long size;
+        long mtime;
+        String hash;
+        String version;
+        String output;
+        long outputSize;
+        long outputMtime;
+
+        Entry(String input) {
+            this.input = input;
+        }
+    }
+
+    /**
+     * The classes whose code decides what .lex and .par files contain; their nested classes count too.
+     */
+    static final String[] COMPILER_CLASSES = {
+        "Lexer", "Parser", "ParWriter", "TokenStore", "CompilerSession", "NodeInterner",
+        "CompileBudget", "CompileException", "PackFile"
+    };
+
+    private static BuildManifest enabled;
+    private static String compilerVersion;
+
+    private final File file;
+    private final String version;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private boolean dirty;
+    private int skipped;
+    private int rebuilt;
+
+    BuildManifest(File file, String version) {
+        this.file = file;
+        this.version = version;
+    }
+
+    /**
+     * loads the manifest from the default location and makes Lexer.main and Parser.main skip up-to-date files
+     *
+     * @return the enabled manifest
+     */
+    static BuildManifest enable() throws IOException {
+        enabled = load(DEFAULT_FILE);
+        return enabled;
+    }
+
+    /**
+     * @return the manifest enabled by --incremental, or null for a full build
+     */
+    static BuildManifest current() {
+        return enabled;
+    }
+
+    /**
+     * reads a manifest; a missing file gives an empty manifest, so everything is rebuilt
+     */
+    static BuildManifest load(File file) throws IOException {
+        return load(file, compilerVersion());
+    }
+
+    /**
+     * reads a manifest for a given compiler version; entries recorded by any other version are stale
+     */
+    static BuildManifest load(File file, String version) throws IOException {
+        BuildManifest m = new BuildManifest(file, version);
+        if (!file.isFile()) {
+            return m;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] f = line.split("\t");
+                if (f.length != 8) {
+                    continue;
+                }
+                Entry e = new Entry(f[0]);
+                e.size = Long.parseLong(f[1]);
+                e.mtime = Long.parseLong(f[2]);
+                e.hash = f[3];
+                e.version = f[4];
+                e.output = f[5];
+                e.outputSize = Long.parseLong(f[6]);
+                e.outputMtime = Long.parseLong(f[7]);
+                m.entries.put(e.input, e);
+            }
+        }
+        return m;
+    }
+
+    /**
+     * decides whether output must be rebuilt from input, counting the file as skipped or rebuilt
+     *
+     * @param input  the source or .lex file
+     * @param output the .lex or .par file it produces
+     * @return true if the output is current and the build step can be skipped
+     */
+    boolean isUpToDate(File input, File output) throws IOException {
+        boolean current = check(input, output);
+        if (current) {
+            this.skipped++;
+        } else {
+            this.rebuilt++;
+        }
+        return current;
+    }
+
+    private boolean check(File input, File output) throws IOException {
+        Entry e = this.entries.get(input.getPath());
+        if (e == null || !e.version.equals(this.version) || !e.output.equals(output.getPath())) {
+            return false;
+        }
+        BasicFileAttributes out = attributes(output);
+        if (out == null || out.size() != e.outputSize || out.lastModifiedTime().toMillis() != e.outputMtime) {
+            return false;
+        }
+        BasicFileAttributes in = attributes(input);
+        if (in == null || in.size() != e.size) {
+            return false;
+        }
+        if (in.lastModifiedTime().toMillis() == e.mtime) {
+            return true;
+        }
+        if (!hash(input).equals(e.hash)) {
+            return false;
+        }
+        e.mtime = in.lastModifiedTime().toMillis();
+        this.dirty = true;
+        return true;
+    }
+
+    /**
+     * records a successful build step; call after output has been written
+     */
+    void record(File input, File output) throws IOException {
+        BasicFileAttributes in = Files.readAttributes(input.toPath(), BasicFileAttributes.class);
+        BasicFileAttributes out = Files.readAttributes(output.toPath(), BasicFileAttributes.class);
+        Entry e = new Entry(input.getPath());
+        e.size = in.size();
+        e.mtime = in.lastModifiedTime().toMillis();
+        e.hash = hash(input);
+        e.version = this.version;
+        e.output = output.getPath();
+        e.outputSize = out.size();
+        e.outputMtime = out.lastModifiedTime().toMillis();
+        this.entries.put(e.input, e);
+        this.dirty = true;
+    }
+
+    /**
+     * writes the manifest if anything changed since it was loaded
+     */
+    void save() throws IOException {
+        if (!this.dirty) {
+            return;
+        }
+        File dir = this.file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        File tmp = File.createTempFile("manifest", ".tmp", dir);
+        try (BufferedWriter w = new BufferedWriter(new FileWriter(tmp))) {
+            w.write(HEADER);
+            w.newLine();
+            for (Entry e : this.entries.values()) {
+                w.write(e.input + '\t' + e.size + '\t' + e.mtime + '\t' + e.hash + '\t' + e.version + '\t'
+                        + e.output + '\t' + e.outputSize + '\t' + e.outputMtime);
+                w.newLine();
+            }
+        }
+        Files.move(tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        this.dirty = false;
+    }
+
+    /**
+     * @return the recorded entry for an input, or null
+     */
+    Entry get(File input) {
+        return this.entries.get(input.getPath());
+    }
+
+    /**
+     * @return a one-line count of skipped and rebuilt files
+     */
+    String summary() {
+        return "incremental build: " + this.rebuilt + " rebuilt, " + this.skipped + " up to date";
+    }
+
+    private static BasicFileAttributes attributes(File f) throws IOException {
+        try {
+            return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    static String hash(File f) throws IOException {
+        try {
+            return hex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(f.toPath())));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The hash of the class files of {@link #COMPILER_CLASSES} and their nested classes, so outputs are
+     * rebuilt whenever code that shapes them changes. The classes are found by listing the directory or
+     * jar they were loaded from; if that is not possible the named classes and their member classes are
+     * read as resources.
+     */
+    static synchronized String compilerVersion() throws IOException {
+        if (compilerVersion == null) {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                for (Map.Entry<String, byte[]> c : compilerClassFiles().entrySet()) {
+                    md.update(c.getKey().getBytes(StandardCharsets.UTF_8));
+                    md.update(c.getValue());
+                }
+                compilerVersion = hex(md.digest()).substring(0, 16);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return compilerVersion;
+    }
+
+    static boolean isCompilerClass(String fileName) {
+        for (String name : COMPILER_CLASSES) {
+            if (fileName.equals(name + ".class") || (fileName.startsWith(name + "$") && fileName.endsWith(".class"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the compiler's class files by name, sorted so the hash does not depend on listing order
+     */
+    private static Map<String, byte[]> compilerClassFiles() throws IOException {
+        Map<String, byte[]> files = new TreeMap<>();
+        CodeSource source = BuildManifest.class.getProtectionDomain().getCodeSource();
+        Path root = null;
+        try {
+            root = source == null ? null : Paths.get(source.getLocation().toURI());
+        } catch (URISyntaxException | IllegalArgumentException | FileSystemNotFoundException e) {
+            // not a local file; fall back to the resources below
+        }
+        if (root != null && Files.isDirectory(root)) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(root, "*.class")) {
+                for (Path p : dir) {
+                    if (isCompilerClass(p.getFileName().toString())) {
+                        files.put(p.getFileName().toString(), Files.readAllBytes(p));
+                    }
+                }
+            }
+        } else if (root != null && Files.isRegularFile(root)) {
+            try (JarFile jar = new JarFile(root.toFile())) {
+                for (Enumeration<JarEntry> en = jar.entries(); en.hasMoreElements(); ) {
+                    JarEntry e = en.nextElement();
+                    if (isCompilerClass(e.getName())) {
+                        try (InputStream in = jar.getInputStream(e)) {
+                            files.put(e.getName(), in.readAllBytes());
+                        }
+                    }
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            for (String name : COMPILER_CLASSES) {
+                try {
+                    addClassFile(Class.forName(name), files);
+                } catch (ClassNotFoundException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void addClassFile(Class<?> c, Map<String, byte[]> files) throws IOException {
+        String name = c.getName() + ".class";
+        try (InputStream in = c.getResourceAsStream("/" + name)) {
+            if (in != null) {
+                files.put(name, in.readAllBytes());
+            }
+        }
+        for (Class<?> member : c.getDeclaredClasses()) {
+            addClassFile(member, files);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+}
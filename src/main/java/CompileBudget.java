@@ -0,0 +1,213 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-compile resource limits: a wall-clock deadline, the source size, the number of tokens,
+ * the expr/stmt nesting depth and the number of AST nodes.
+ * A budget is configured once and then armed with {@link #start()} for every compile, which fixes the
+ * deadline and gives the compile its own instance to {@link #cancel()} from another thread.
+ * The Lexer and Parser check it cooperatively: counts are compared as they grow, and the clock and the
+ * cancel flag are read every {@link #CHECK_INTERVAL} tokens, so an unlimited budget costs a few integer
+ * compares per token. A limit that is hit throws {@link CompileException} naming the limit.
+ * <p>
+ * Main --budget takes the limits as a list such as {@code deadline=5s,source=16M,tokens=1000000,depth=500,nodes=2000000}.
+ */
+class CompileBudget {
+    static final int CHECK_INTERVAL = 256;
+
+    /**
+     * No limits; what the Lexer and Parser use unless told otherwise.
+     */
+    static final CompileBudget UNLIMITED = new CompileBudget();
+
+    private static volatile CompileBudget defaults = UNLIMITED;
+
+    private long timeoutNanos;
+    private long maxSourceBytes = Long.MAX_VALUE;
+    private int maxTokens = Integer.MAX_VALUE;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxNodes = Integer.MAX_VALUE;
+
+    private long deadline;
+    private volatile boolean cancelled;
+
+    CompileBudget timeout(long amount, TimeUnit unit) {
+        this.timeoutNanos = unit.toNanos(amount);
+        return this;
+    }
+
+    CompileBudget maxSourceBytes(long bytes) {
+        this.maxSourceBytes = bytes;
+        return this;
+    }
+
+    CompileBudget maxTokens(int tokens) {
+        this.maxTokens = tokens;
+        return this;
+    }
+
+    CompileBudget maxDepth(int depth) {
+        this.maxDepth = depth;
+        return this;
+    }
+
+    CompileBudget maxNodes(int nodes) {
+        this.maxNodes = nodes;
+        return this;
+    }
+
+    /**
+     * @return a copy of these limits for one compile, with its deadline counted from now
+     */
+    CompileBudget start() {
+        CompileBudget b = new CompileBudget();
+        b.timeoutNanos = this.timeoutNanos;
+        b.maxSourceBytes = this.maxSourceBytes;
+        b.maxTokens = this.maxTokens;
+        b.maxDepth = this.maxDepth;
+        b.maxNodes = this.maxNodes;
+        b.deadline = this.timeoutNanos > 0 ? System.nanoTime() + this.timeoutNanos : 0;
+        return b;
+    }
+
+    /**
+     * stops the compile using this budget at its next check; safe to call from any thread
+     */
+    void cancel() {
+        if (this == UNLIMITED) {
+            throw new IllegalStateException("cancel a budget returned by start(), not the shared UNLIMITED one");
+        }
+        this.cancelled = true;
+    }
+
+    /**
+     * @return the limits the command line tools arm for every file, UNLIMITED unless Main --budget set them
+     */
+    static CompileBudget defaults() {
+        return defaults;
+    }
+
+    static void setDefaults(CompileBudget budget) {
+        defaults = budget;
+    }
+
+    /**
+     * throws if the compile was cancelled or is past its deadline
+     */
+    void checkTime(int line, int pos) {
+        if (this.cancelled) {
+            throw new CompileException(CompileException.Kind.CANCELLED, "compile cancelled", line, pos);
+        }
+        if (this.deadline != 0 && System.nanoTime() - this.deadline > 0) {
+            throw new CompileException(CompileException.Kind.DEADLINE,
+                    "compile exceeded its deadline of " + TimeUnit.NANOSECONDS.toMillis(this.timeoutNanos) + " ms",
+                    line, pos);
+        }
+    }
+
+    void checkSource(long bytes) {
+        if (bytes > this.maxSourceBytes) {
+            throw new CompileException(CompileException.Kind.SOURCE_SIZE,
+                    "source of " + bytes + " bytes exceeds the limit of " + this.maxSourceBytes, -1, -1);
+        }
+    }
+
+    void checkTokens(int tokens, int line, int pos) {
+        if (tokens > this.maxTokens) {
+            throw new CompileException(CompileException.Kind.TOKENS,
+                    "more than " + this.maxTokens + " tokens", line, pos);
+        }
+    }
+
+    void checkDepth(int depth, int line, int pos) {
+        if (depth > this.maxDepth) {
+            throw new CompileException(CompileException.Kind.DEPTH,
+                    "nesting deeper than " + this.maxDepth + " levels", line, pos);
+        }
+    }
+
+    void checkNodes(int nodes, int line, int pos) {
+        if (nodes > this.maxNodes) {
+            throw new CompileException(CompileException.Kind.NODES,
+                    "more than " + this.maxNodes + " AST nodes", line, pos);
+        }
+    }
+
+    /**
+     * reads limits written as comma separated key=value pairs: deadline (ms, or with an ms, s or m suffix),
+     * source (bytes, K/M/G suffixes allowed), tokens, depth and nodes; a malformed pair, an unknown key or a
+     * value that is not a whole number in range throws IllegalArgumentException naming it
+     */
+    static CompileBudget parse(String spec) {
+        CompileBudget b = new CompileBudget();
+        for (String part : spec.split(",")) {
+            String[] kv = part.trim().split("=", 2);
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("expected key=value in budget: " + part);
+            }
+            String key = kv[0].trim();
+            String v = kv[1].trim();
+            switch (key) {
+                case "deadline":
+                    b.timeout(duration(key, v), TimeUnit.MILLISECONDS);
+                    break;
+                case "source":
+                    b.maxSourceBytes(size(key, v));
+                    break;
+                case "tokens":
+                    b.maxTokens(count(key, v));
+                    break;
+                case "depth":
+                    b.maxDepth(count(key, v));
+                    break;
+                case "nodes":
+                    b.maxNodes(count(key, v));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown budget limit: " + key);
+            }
+        }
+        return b;
+    }
+
+    private static long duration(String key, String v) {
+        if (v.endsWith("ms")) {
+            return number(key, v, v.length() - 2, 1, Long.MAX_VALUE);
+        } else if (v.endsWith("s")) {
+            return number(key, v, v.length() - 1, 1000, Long.MAX_VALUE);
+        } else if (v.endsWith("m")) {
+            return number(key, v, v.length() - 1, 60 * 1000, Long.MAX_VALUE);
+        }
+        return number(key, v, v.length(), 1, Long.MAX_VALUE);
+    }
+
+    private static long size(String key, String v) {
+        String s = v.toUpperCase();
+        if (s.endsWith("K")) {
+            return number(key, v, v.length() - 1, 1L << 10, Long.MAX_VALUE);
+        } else if (s.endsWith("M")) {
+            return number(key, v, v.length() - 1, 1L << 20, Long.MAX_VALUE);
+        } else if (s.endsWith("G")) {
+            return number(key, v, v.length() - 1, 1L << 30, Long.MAX_VALUE);
+        }
+        return number(key, v, v.length(), 1, Long.MAX_VALUE);
+    }
+
+    private static int count(String key, String v) {
+        return (int) number(key, v, v.length(), 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * the digits of v before end times unit, if that is a whole number from 0 to max
+     */
+    private static long number(String key, String v, int end, long unit, long max) {
+        try {
+            long n = Math.multiplyExact(Long.parseLong(v.substring(0, end)), unit);
+            if (n >= 0 && n <= max) {
+                return n;
+            }
+        } catch (NumberFormatException | ArithmeticException e) {
+            // reported below, the same as a value out of range
+        }
+        throw new IllegalArgumentException("bad " + key + " limit in budget: " + v);
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * A compile that failed: a syntax error in the input, or a {@link CompileBudget} limit it ran into.
+ * The Lexer and Parser throw this instead of ending the JVM, so a batch driver or a worker thread
+ * can report the file and move on. The command line entry points print each failure, carry on with the
+ * next file and exit with 1 at the end if any failed.
+ */
+class CompileException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Why the compile stopped.
+     */
+    enum Kind {
+        SYNTAX, DEADLINE, CANCELLED, SOURCE_SIZE, TOKENS, DEPTH, NODES
+    }
+
+    final Kind kind;
+    final int line;
+    final int pos;
+
+    /**
+     * @param kind why the compile stopped
+     * @param msg  the diagnostic
+     * @param line source line, or -1 if unknown
+     * @param pos  position in the line, or -1 if unknown
+     */
+    CompileException(Kind kind, String msg, int line, int pos) {
+        super(line > 0 && pos > 0 ? msg + " in line " + line + ", pos " + pos : msg);
+        this.kind = kind;
+        this.line = line;
+        this.pos = pos;
+    }
+
+    /**
+     * The line the command line entry points print for a failed file: the message of a compile error, or
+     * of any other exception prefixed with "Exception: ", as the tools have always reported I/O failures.
+     *
+     * @param e what lexFile or parseFile threw
+     * @return the diagnostic
+     */
+    static String diagnostic(Exception e) {
+        return e instanceof CompileException ? e.getMessage() : "Exception: " + e.getMessage();
+    }
+}
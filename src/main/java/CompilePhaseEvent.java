@@ -0,0 +1,39 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JDK Flight Recorder event emitted around each phase of a compile.
+ * Record with: java -XX:StartFlightRecording:filename=compile.jfr -cp ... Main
+ */
+@Name("minicompiler.CompilePhase")
+@Label("Compile Phase")
+@Category("MiniCompiler")
+@Description("One phase of lexing or parsing a single file")
+class CompilePhaseEvent extends jdk.jfr.Event {
+    @Label("Phase")
+    String phase;
+
+    @Label("File")
+    String file;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Tokens")
+    int tokens;
+
+    @Label("Nodes")
+    int nodes;
+
+    @Label("Max Parse Depth")
+    int maxDepth;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the compiling thread during the phase")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,249 @@
+import jdk.jfr.FlightRecorder;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-phase instrumentation for the Lexer and Parser.
+ * Every phase is wrapped in a {@link CompilePhaseEvent}; when the driver runs with --stats the same
+ * measurements are also collected here and printed as a per-file and aggregate summary.
+ * When neither JFR nor --stats is active a phase costs two flag checks and allocates nothing, and JFR
+ * is never loaded, which keeps it out of the startup path.
+ * The report has one row per program: the Lexer's phases on fizzbuzz.c and the Parser's phases on
+ * myLexedfizzbuzz.lex are added up under fizzbuzz.c.
+ */
+class CompileStats {
+
+    /**
+     * The instrumented phases, in pipeline order.
+     */
+    enum Stage {
+        READ_SOURCE("read"), LEX("lex"), EMIT_LEX("emit .lex"),
+        READ_LEX("read .lex"), PARSE("parse"), EMIT_PAR("emit .par");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return this.label;
+        }
+    }
+
+    /**
+     * Accumulated measurements for one input file.
+     */
+    static class FileStats {
+        String file;
+        final Map<Stage, Long> nanos = new EnumMap<>(Stage.class);
+        long sourceBytes;
+        long lexBytes;
+        int tokens;
+        int nodes;
+        int maxDepth;
+        long allocated;
+
+        FileStats(String file) {
+            this.file = file;
+        }
+
+        /**
+         * @return the size of the program's source, or of its .lex when only the Parser saw it
+         */
+        long bytes() {
+            return this.sourceBytes > 0 ? this.sourceBytes : this.lexBytes;
+        }
+
+        long totalNanos() {
+            long total = 0;
+            for (long n : nanos.values()) {
+                total += n;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * An in-progress phase, closed with {@link #end}.
+     */
+    static class Phase {
+        private static final Phase NONE = new Phase(null, null, null);
+
+        private final Stage stage;
+        private final String file;
+        private final CompilePhaseEvent event;
+        private final long start;
+        private final long allocStart;
+
+        /**
+         * @param event the JFR event to commit, or null when only --stats is listening
+         */
+        private Phase(Stage stage, String file, CompilePhaseEvent event) {
+            this.stage = stage;
+            this.file = file;
+            this.event = event;
+            this.start = stage == null ? 0 : System.nanoTime();
+            this.allocStart = stage == null ? 0 : Allocation.current();
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        /**
+         * @return true if the phase is being measured, so callers can skip computing counts otherwise
+         */
+        boolean active() {
+            return this.stage != null;
+        }
+
+        /**
+         * closes the phase and records what it processed
+         *
+         * @param bytes    bytes read or written by the phase
+         * @param tokens   tokens produced or consumed
+         * @param nodes    AST nodes produced or consumed
+         * @param maxDepth maximum parse recursion depth reached
+         */
+        void end(long bytes, int tokens, int nodes, int maxDepth) {
+            if (this.stage == null) {
+                return;
+            }
+            long elapsed = System.nanoTime() - this.start;
+            long allocated = Allocation.current() - this.allocStart;
+            if (this.event != null) {
+                this.event.end();
+            }
+            if (this.event != null && this.event.shouldCommit()) {
+                this.event.phase = this.stage.toString();
+                this.event.file = this.file;
+                this.event.bytes = bytes;
+                this.event.tokens = tokens;
+                this.event.nodes = nodes;
+                this.event.maxDepth = maxDepth;
+                this.event.allocated = allocated;
+                this.event.commit();
+            }
+            if (enabled) {
+                record(this.stage, this.file, elapsed, bytes, tokens, nodes, maxDepth, allocated);
+            }
+        }
+    }
+
+    /**
+     * Lazily binds the per-thread allocation counter so the management classes are only loaded when measuring.
+     */
+    private static class Allocation {
+        private static final com.sun.management.ThreadMXBean THREADS =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        static long current() {
+            return THREADS.getCurrentThreadAllocatedBytes();
+        }
+    }
+
+    private static volatile boolean enabled = false;
+    private static final Map<String, FileStats> files = new LinkedHashMap<>();
+
+    /**
+     * turns on collection for the --stats report
+     */
+    static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * starts measuring a phase
+     *
+     * @param stage the phase being entered
+     * @param file  the file it operates on
+     * @return the open phase; a shared no-op phase if nothing is listening
+     */
+    static Phase begin(Stage stage, String file) {
+        // loading any event class starts up JFR, so the event is only touched once a recording exists
+        CompilePhaseEvent event = FlightRecorder.isInitialized() ? new CompilePhaseEvent() : null;
+        boolean recording = event != null && event.isEnabled();
+        if (!enabled && !recording) {
+            return Phase.NONE;
+        }
+        return new Phase(stage, file, recording ? event : null);
+    }
+
+    /**
+     * @return the key a file's phases are added up under: its name without the myLexed prefix and extension
+     */
+    static String program(String file) {
+        String name = file.startsWith("myLexed") ? file.substring("myLexed".length()) : file;
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static synchronized void record(Stage stage, String file, long nanos, long bytes, int tokens,
+                                            int nodes, int maxDepth, long allocated) {
+        FileStats fs = files.computeIfAbsent(program(file), key -> new FileStats(file));
+        if (fs.file.endsWith(".lex") && !file.endsWith(".lex")) {
+            // the source name reads better than the .lex name once the Lexer has reported in
+            fs.file = file;
+        }
+        fs.nanos.merge(stage, nanos, Long::sum);
+        if (stage == Stage.READ_SOURCE) {
+            fs.sourceBytes += bytes;
+        } else if (stage == Stage.READ_LEX) {
+            fs.lexBytes += bytes;
+        }
+        fs.tokens = Math.max(fs.tokens, tokens);
+        fs.nodes = Math.max(fs.nodes, nodes);
+        fs.maxDepth = Math.max(fs.maxDepth, maxDepth);
+        fs.allocated += allocated;
+    }
+
+    /**
+     * @return a snapshot of the collected per-file stats, in the order files were first seen
+     */
+    static synchronized List<FileStats> snapshot() {
+        return new ArrayList<>(files.values());
+    }
+
+    private static String row(String name, long bytes, int tokens, int nodes, int depth, long nanos, long allocated) {
+        double seconds = nanos / 1e9;
+        return String.format("%-28s %10d %8d %8d %5d %10.3f %10d %8.2f %12.0f %12.0f",
+                name, bytes, tokens, nodes, depth, nanos / 1e6, allocated / 1024,
+                seconds > 0 ? bytes / seconds / (1024 * 1024) : 0.0,
+                seconds > 0 ? tokens / seconds : 0.0,
+                seconds > 0 ? nodes / seconds : 0.0);
+    }
+
+    /**
+     * prints the per-file and aggregate summary collected since {@link #enable()}
+     */
+    static void printReport() {
+        List<FileStats> all = snapshot();
+        System.out.println();
+        System.out.println(String.format("%-28s %10s %8s %8s %5s %10s %10s %8s %12s %12s",
+                "file", "bytes", "tokens", "nodes", "depth", "time ms", "alloc KB", "MB/s", "tokens/s", "nodes/s"));
+        long bytes = 0, nanos = 0, allocated = 0;
+        int tokens = 0, nodes = 0, depth = 0;
+        Map<Stage, Long> perStage = new EnumMap<>(Stage.class);
+        for (FileStats fs : all) {
+            System.out.println(row(fs.file, fs.bytes(), fs.tokens, fs.nodes, fs.maxDepth, fs.totalNanos(), fs.allocated));
+            bytes += fs.bytes();
+            tokens += fs.tokens;
+            nodes += fs.nodes;
+            depth = Math.max(depth, fs.maxDepth);
+            nanos += fs.totalNanos();
+            allocated += fs.allocated;
+            fs.nanos.forEach((stage, n) -> perStage.merge(stage, n, Long::sum));
+        }
+        System.out.println(row("TOTAL (" + all.size() + " files)", bytes, tokens, nodes, depth, nanos, allocated));
+
+        StringBuilder stages = new StringBuilder("phase time:");
+        perStage.forEach((stage, n) -> stages.append(String.format("  %s %.3f ms", stage, n / 1e6)));
+        System.out.println(stages);
+    }
+}
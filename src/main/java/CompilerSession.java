@@ -0,0 +1,223 @@
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Reusable compile pipeline for callers that compile many small programs in one JVM.
+ * A session owns one Lexer and one Parser that are reset for every source, and pools the
+ * token list, the token objects and the .lex/.par output buffers. Pools grow to the largest
+ * program seen and are kept at that high-water mark, capped at {@link #RETAIN_LIMIT} so one huge
+ * input does not pin memory forever. Sessions are not thread-safe; use {@link #get()} for the
+ * calling thread's session. Each compile runs under the session's {@link CompileBudget} and can be
+ * stopped from another thread with {@link #cancel()}; a failed compile throws {@link CompileException}
+ * and leaves the session ready for the next one. With {@link #setShareNodes} the session's parser
+ * hash-conses its trees through a NodeInterner that is emptied after every compile.
+ * The output is byte-identical to running Lexer.main and then Parser.main on the .lex file.
+ */
+class CompilerSession {
+    /**
+     * Pools above this many tokens (and buffers above this many chars) are dropped after a compile.
+     */
+    static final int RETAIN_LIMIT = 1 << 20;
+
+    private static final ThreadLocal<CompilerSession> SESSIONS = ThreadLocal.withInitial(CompilerSession::new);
+
+    private final Lexer lexer = new Lexer(" ");
+    private final Parser parser = new Parser(new ArrayList<>());
+    private ArrayList<Parser.Token> tokens = new ArrayList<>();
+    private ArrayList<Parser.Token> tokenPool = new ArrayList<>();
+    private StringBuilder lexOut = new StringBuilder();
+    private StringBuilder parOut = new StringBuilder();
+    private CompileBudget budget = CompileBudget.UNLIMITED;
+    private volatile CompileBudget running = CompileBudget.UNLIMITED;
+    private NodeInterner interner;
+
+    /**
+     * @return the session bound to the calling thread
+     */
+    static CompilerSession get() {
+        return SESSIONS.get();
+    }
+
+    /**
+     * Sets the limits every following compile of this session runs under.
+     *
+     * @param budget the limits; {@link CompileBudget#UNLIMITED} to remove them
+     */
+    void setBudget(CompileBudget budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Turns sharing of structurally equal AST subtrees on or off for the following compiles.
+     *
+     * @param share true to build trees through a NodeInterner
+     */
+    void setShareNodes(boolean share) {
+        this.interner = share ? new NodeInterner() : null;
+        this.parser.setInterner(this.interner);
+    }
+
+    /**
+     * Stops the compile in flight, which then throws a CANCELLED {@link CompileException}.
+     * Does nothing between compiles or when no budget was set. Safe to call from any thread.
+     */
+    void cancel() {
+        CompileBudget b = this.running;
+        if (b != CompileBudget.UNLIMITED) {
+            b.cancel();
+        }
+    }
+
+    /**
+     * Lexes a program and returns its .lex text.
+     * The returned buffer is owned by the session and only valid until the next call.
+     *
+     * @param source the program text, as it would be read from a file
+     * @return the .lex text
+     */
+    CharSequence lex(String source) {
+        recycle();
+        scan(source, true);
+        return this.lexOut;
+    }
+
+    /**
+     * Lexes and parses a source and returns its .par text.
+     * The returned buffer is owned by the session and only valid until the next call.
+     *
+     * @param source the program text, as it would be read from a file
+     * @return the .par text
+     */
+    CharSequence parse(String source) {
+        recycle();
+        scan(source, false);
+        this.parser.reset(this.tokens, this.running);
+        try {
+            this.parser.appendAST(this.parser.parse(), this.parOut, false);
+        } finally {
+            releaseNodes();
+        }
+        return this.parOut;
+    }
+
+    /**
+     * Lexes and parses a source, returning the AST.
+     *
+     * @param source the program text, as it would be read from a file
+     * @return the root of the AST, null for an empty program
+     */
+    Parser.Node tree(String source) {
+        recycle();
+        scan(source, false);
+        this.parser.reset(this.tokens, this.running);
+        try {
+            return this.parser.parse();
+        } finally {
+            releaseNodes();
+        }
+    }
+
+    /**
+     * the returned tree keeps the nodes it uses; the interner only lets go of its table
+     */
+    private void releaseNodes() {
+        if (this.interner != null) {
+            this.interner.release();
+        }
+    }
+
+    /**
+     * @return the number of tokens of the last compile, including End_of_input
+     */
+    int tokenCount() {
+        return this.tokens.size();
+    }
+
+    private void scan(String source, boolean emitLex) {
+        this.lexer.reset(Lexer.prepareSource(source), this.running);
+        Lexer.Token t;
+        do {
+            t = this.lexer.nextToken();
+            if (emitLex) {
+                if (this.tokens.size() > 0) {
+                    this.lexOut.append('\n');
+                }
+                t.appendTo(this.lexOut);
+            }
+            this.tokens.add(convert(t, this.tokens.size()));
+        } while (t.tokentype != Lexer.TokenType.End_of_input);
+    }
+
+    /**
+     * turns a Lexer token into the Parser token that reading its .lex line back would produce
+     */
+    private Parser.Token convert(Lexer.Token t, int index) {
+        Parser.Token p;
+        if (index < this.tokenPool.size()) {
+            p = this.tokenPool.get(index);
+        } else {
+            p = new Parser.Token(null, "", 0, 0);
+            this.tokenPool.add(p);
+        }
+        p.tokentype = Parser.str_to_tokens.get(t.tokentype.name());
+        p.line = t.line;
+        p.pos = t.pos;
+        p.number = t.number;
+        p.decoded = t.decoded;
+        switch (t.tokentype) {
+            case Integer:
+            case Identifier:
+                p.value = t.value.isEmpty() ? "" : t.value + " ";
+                break;
+            case String:
+                p.value = words("\"" + t.value + "\"");
+                break;
+            default:
+                p.value = "";
+        }
+        return p;
+    }
+
+    /**
+     * the value Parser.readTokens builds from a .lex field: whitespace runs collapse and every word gets a trailing space
+     */
+    static String words(String text) {
+        boolean plain = true;
+        for (int i = 0; i < text.length() && plain; i++) {
+            char c = text.charAt(i);
+            plain = c != ' ' && c != '\t' && c != '\n' && c != '\r' && c != '\f';
+        }
+        if (plain) {
+            return text + " ";
+        }
+        StringBuilder sb = new StringBuilder(text.length() + 1);
+        StringTokenizer st = new StringTokenizer(text);
+        while (st.hasMoreTokens()) {
+            sb.append(st.nextToken()).append(' ');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * empties the pooled buffers for the next compile, keeping their capacity unless it grew past the limit
+     */
+    private void recycle() {
+        this.running = this.budget == CompileBudget.UNLIMITED ? this.budget : this.budget.start();
+        if (this.tokens.size() > RETAIN_LIMIT) {
+            this.tokens = new ArrayList<>();
+            this.tokenPool = new ArrayList<>();
+        } else {
+            this.tokens.clear();
+        }
+        this.lexOut = reuse(this.lexOut);
+        this.parOut = reuse(this.parOut);
+    }
+
+    private static StringBuilder reuse(StringBuilder sb) {
+        if (sb.capacity() > RETAIN_LIMIT) {
+            return new StringBuilder();
+        }
+        sb.setLength(0);
+        return sb;
+    }
+}
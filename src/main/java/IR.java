@@ -0,0 +1,692 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Three-address intermediate representation.
+ * Lowers the Parser's AST into basic blocks of three-address instructions over virtual registers,
+ * links the blocks into an explicit control-flow graph, and runs local value numbering,
+ * copy propagation and dead-store elimination over it.
+ */
+class IR {
+
+    static enum Op {
+        Copy("copy"), Add("add"), Sub("sub"), Mul("mul"), Div("div"), Mod("mod"),
+        Lss("lt"), Leq("le"), Gtr("gt"), Geq("ge"), Eql("eq"), Neq("ne"), And("and"), Or("or"),
+        Negate("neg"), Not("not"),
+        Prtc("prtc"), Prti("prti"), Prts("prts"),
+        Jump("jump"), Branch("branch"), Halt("halt");
+
+        private final String name;
+
+        Op(String name) {
+            this.name = name;
+        }
+
+        boolean isBinary() {
+            return this.ordinal() >= Add.ordinal() && this.ordinal() <= Or.ordinal();
+        }
+
+        boolean isUnary() {
+            return this == Negate || this == Not;
+        }
+
+        boolean isCommutative() {
+            return this == Add || this == Mul || this == Eql || this == Neq || this == And || this == Or;
+        }
+
+        boolean isTerminator() {
+            return this == Jump || this == Branch || this == Halt;
+        }
+
+        /**
+         * @return true if the instruction must be kept even when nothing reads its result
+         */
+        boolean hasSideEffect() {
+            return this == Prtc || this == Prti || this == Prts || isTerminator();
+        }
+
+        @Override
+        public String toString() {
+            return this.name;
+        }
+
+        static Op fromNodeType(Parser.NodeType nt) {
+            switch (nt) {
+                case nd_Add: return Add;
+                case nd_Sub: return Sub;
+                case nd_Mul: return Mul;
+                case nd_Div: return Div;
+                case nd_Mod: return Mod;
+                case nd_Lss: return Lss;
+                case nd_Leq: return Leq;
+                case nd_Gtr: return Gtr;
+                case nd_Geq: return Geq;
+                case nd_Eql: return Eql;
+                case nd_Neq: return Neq;
+                case nd_And: return And;
+                case nd_Or: return Or;
+                case nd_Negate: return Negate;
+                case nd_Not: return Not;
+                default: return null;
+            }
+        }
+    }
+
+    /**
+     * A virtual register (%tN), a program variable, or an integer constant.
+     */
+    static final class Operand {
+        enum Kind { Temp, Var, Const }
+
+        final Kind kind;
+        final int number;
+        final String name;
+
+        private Operand(Kind kind, int number, String name) {
+            this.kind = kind;
+            this.number = number;
+            this.name = name;
+        }
+
+        static Operand temp(int n) {
+            return new Operand(Kind.Temp, n, null);
+        }
+
+        static Operand var(String name) {
+            return new Operand(Kind.Var, 0, name);
+        }
+
+        static Operand constant(int value) {
+            return new Operand(Kind.Const, value, null);
+        }
+
+        boolean isConst() {
+            return this.kind == Kind.Const;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Operand)) {
+                return false;
+            }
+            Operand other = (Operand) o;
+            return this.kind == other.kind && this.number == other.number && Objects.equals(this.name, other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.kind, this.number, this.name);
+        }
+
+        @Override
+        public String toString() {
+            switch (this.kind) {
+                case Temp: return "%t" + this.number;
+                case Var: return this.name;
+                default: return String.valueOf(this.number);
+            }
+        }
+    }
+
+    /**
+     * One three-address instruction: dst = op a, b. Branch targets are only set on terminators.
+     */
+    static final class Instr {
+        Op op;
+        Operand dst, a, b;
+        String text;
+        Block target, otherwise;
+
+        Instr(Op op, Operand dst, Operand a, Operand b) {
+            this.op = op;
+            this.dst = dst;
+            this.a = a;
+            this.b = b;
+        }
+
+        /**
+         * @return the operands this instruction reads
+         */
+        List<Operand> uses() {
+            List<Operand> uses = new ArrayList<>(2);
+            if (this.a != null) {
+                uses.add(this.a);
+            }
+            if (this.b != null) {
+                uses.add(this.b);
+            }
+            return uses;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            if (this.dst != null) {
+                sb.append(this.dst).append(" = ");
+            }
+            sb.append(this.op);
+            if (this.op == Op.Prts) {
+                sb.append(' ').append(this.text);
+            }
+            if (this.a != null) {
+                sb.append(' ').append(this.a);
+            }
+            if (this.b != null) {
+                sb.append(", ").append(this.b);
+            }
+            if (this.target != null) {
+                sb.append(this.a != null ? ", " : " ").append(this.target.label());
+            }
+            if (this.otherwise != null) {
+                sb.append(", ").append(this.otherwise.label());
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * A basic block: straight-line instructions ending in exactly one terminator.
+     */
+    static final class Block {
+        final int id;
+        final List<Instr> instrs = new ArrayList<>();
+        final List<Block> succs = new ArrayList<>(2);
+        final List<Block> preds = new ArrayList<>(2);
+
+        Block(int id) {
+            this.id = id;
+        }
+
+        String label() {
+            return "B" + this.id;
+        }
+
+        Instr terminator() {
+            return this.instrs.isEmpty() ? null : this.instrs.get(this.instrs.size() - 1);
+        }
+
+        boolean isTerminated() {
+            Instr last = terminator();
+            return last != null && last.op.isTerminator();
+        }
+    }
+
+    /**
+     * The control-flow graph of a whole program; blocks.get(0) is the entry.
+     */
+    static final class Cfg {
+        final List<Block> blocks = new ArrayList<>();
+        int temps;
+
+        Block newBlock() {
+            Block b = new Block(this.blocks.size());
+            this.blocks.add(b);
+            return b;
+        }
+
+        Operand newTemp() {
+            return Operand.temp(++this.temps);
+        }
+
+        /**
+         * rebuilds the successor and predecessor lists from the block terminators
+         */
+        void link() {
+            for (Block b : this.blocks) {
+                b.succs.clear();
+                b.preds.clear();
+            }
+            for (Block b : this.blocks) {
+                Instr last = b.terminator();
+                if (last.target != null) {
+                    b.succs.add(last.target);
+                    last.target.preds.add(b);
+                }
+                if (last.otherwise != null && last.otherwise != last.target) {
+                    b.succs.add(last.otherwise);
+                    last.otherwise.preds.add(b);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Block b : this.blocks) {
+                sb.append(b.label()).append(':');
+                if (!b.preds.isEmpty()) {
+                    sb.append("    ; preds");
+                    for (Block p : b.preds) {
+                        sb.append(' ').append(p.label());
+                    }
+                }
+                sb.append('\n');
+                for (Instr i : b.instrs) {
+                    sb.append("    ").append(i).append('\n');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final Cfg cfg = new Cfg();
+    private Block current;
+
+    private IR() {
+        this.current = this.cfg.newBlock();
+    }
+
+    /**
+     * lowers an AST produced by Parser.parse() into a control-flow graph of three-address code
+     *
+     * @param root the program AST, may be null for an empty program
+     * @return the CFG, entry block first
+     */
+    static Cfg lower(Parser.Node root) {
+        IR ir = new IR();
+        ir.lowerStmt(root);
+        ir.emit(new Instr(Op.Halt, null, null, null));
+        ir.cfg.link();
+        return ir.cfg;
+    }
+
+    private Instr emit(Instr i) {
+        if (this.current.isTerminated()) {
+            // code after a terminator starts a fresh (unreachable) block
+            this.current = this.cfg.newBlock();
+        }
+        this.current.instrs.add(i);
+        return i;
+    }
+
+    private void jump(Block target) {
+        Instr j = emit(new Instr(Op.Jump, null, null, null));
+        j.target = target;
+    }
+
+    private void branch(Operand cond, Block ifTrue, Block ifFalse) {
+        Instr br = emit(new Instr(Op.Branch, null, cond, null));
+        br.target = ifTrue;
+        br.otherwise = ifFalse;
+    }
+
+    private void lowerStmt(Parser.Node n) {
+        if (n == null) {
+            return;
+        }
+        switch (n.nt) {
+            case nd_Sequence: {
+                // walk the left-deep spine iteratively so long programs do not overflow the stack
+                Deque<Parser.Node> spine = new ArrayDeque<>();
+                Parser.Node s = n;
+                while (s != null && s.nt == Parser.NodeType.nd_Sequence) {
+                    spine.push(s);
+                    s = s.left;
+                }
+                lowerStmt(s);
+                while (!spine.isEmpty()) {
+                    lowerStmt(spine.pop().right);
+                }
+                break;
+            }
+            case nd_Assign: {
+                Operand value = lowerExpr(n.right);
+                emit(new Instr(Op.Copy, Operand.var(n.left.value.trim()), value, null));
+                break;
+            }
+            case nd_If: {
+                Operand cond = lowerExpr(n.left);
+                Block then = this.cfg.newBlock();
+                Block join = this.cfg.newBlock();
+                Block otherwise = n.right.right == null ? join : this.cfg.newBlock();
+                branch(cond, then, otherwise);
+                this.current = then;
+                lowerStmt(n.right.left);
+                jump(join);
+                if (otherwise != join) {
+                    this.current = otherwise;
+                    lowerStmt(n.right.right);
+                    jump(join);
+                }
+                this.current = join;
+                break;
+            }
+            case nd_While: {
+                Block head = this.cfg.newBlock();
+                Block body = this.cfg.newBlock();
+                Block exit = this.cfg.newBlock();
+                jump(head);
+                this.current = head;
+                branch(lowerExpr(n.left), body, exit);
+                this.current = body;
+                lowerStmt(n.right);
+                jump(head);
+                this.current = exit;
+                break;
+            }
+            case nd_Prtc:
+                emit(new Instr(Op.Prtc, null, lowerExpr(n.left), null));
+                break;
+            case nd_Prti:
+                emit(new Instr(Op.Prti, null, lowerExpr(n.left), null));
+                break;
+            case nd_Prts: {
+                Instr prts = emit(new Instr(Op.Prts, null, null, null));
+                // the token value has its whitespace runs collapsed; decoded was read from the raw .lex line
+                prts.text = n.left.decoded != null ? quote(n.left.decoded) : n.left.value.trim();
+                break;
+            }
+            default:
+                Parser.error(-1, -1, "IR: unexpected statement node " + n.nt);
+        }
+    }
+
+    /**
+     * writes decoded string contents back as a literal, escaping what the Lexer would have had to decode
+     */
+    static String quote(String text) {
+        StringBuilder sb = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\n': sb.append("\\n"); break;
+                case '\t': sb.append("\\t"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\0': sb.append("\\0"); break;
+                case '\\': sb.append("\\\\"); break;
+                case '"': sb.append("\\\""); break;
+                default: sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private Operand lowerExpr(Parser.Node n) {
+        switch (n.nt) {
+            case nd_Integer:
+                return Operand.constant(n.number);
+            case nd_Ident:
+                return Operand.var(n.value.trim());
+            default:
+                Op op = Op.fromNodeType(n.nt);
+                if (op == null) {
+                    Parser.error(-1, -1, "IR: unexpected expression node " + n.nt);
+                }
+                Operand a = lowerExpr(n.left);
+                Operand b = op.isBinary() ? lowerExpr(n.right) : null;
+                Operand dst = this.cfg.newTemp();
+                emit(new Instr(op, dst, a, b));
+                return dst;
+        }
+    }
+
+    /**
+     * runs the optimization passes until none of them changes the code
+     *
+     * @param cfg the program to optimize in place
+     */
+    static void optimize(Cfg cfg) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Block b : cfg.blocks) {
+                changed |= valueNumbering(b);
+                changed |= copyPropagation(b);
+            }
+            changed |= deadStoreElimination(cfg);
+        }
+    }
+
+    /**
+     * folds constants into a result, or returns null when the operation must be left to run time
+     */
+    static Integer fold(Op op, int a, int b) {
+        switch (op) {
+            case Add: return a + b;
+            case Sub: return a - b;
+            case Mul: return a * b;
+            case Div: return b == 0 ? null : a / b;
+            case Mod: return b == 0 ? null : a % b;
+            case Lss: return a < b ? 1 : 0;
+            case Leq: return a <= b ? 1 : 0;
+            case Gtr: return a > b ? 1 : 0;
+            case Geq: return a >= b ? 1 : 0;
+            case Eql: return a == b ? 1 : 0;
+            case Neq: return a != b ? 1 : 0;
+            case And: return (a != 0 && b != 0) ? 1 : 0;
+            case Or: return (a != 0 || b != 0) ? 1 : 0;
+            case Negate: return -a;
+            case Not: return a == 0 ? 1 : 0;
+            default: return null;
+        }
+    }
+
+    /**
+     * Local value numbering: operands holding the same value share a number, so a recomputed
+     * expression becomes a copy of the operand that already holds it, and constant operands fold.
+     *
+     * @param b the block to rewrite
+     * @return true if any instruction changed
+     */
+    static boolean valueNumbering(Block b) {
+        Map<Operand, Integer> numbers = new HashMap<>();
+        Map<Integer, Operand> holders = new HashMap<>();
+        Map<List<Object>, Integer> expressions = new HashMap<>();
+        int[] next = {0};
+        boolean changed = false;
+
+        for (Instr i : b.instrs) {
+            if (i.dst == null) {
+                continue;
+            }
+            if (i.op == Op.Copy) {
+                numbers.put(i.dst, valueNumber(i.a, numbers, holders, next));
+                continue;
+            }
+            int va = valueNumber(i.a, numbers, holders, next);
+            int vb = i.b == null ? -1 : valueNumber(i.b, numbers, holders, next);
+            Operand ca = holders.get(va);
+            Operand cb = i.b == null ? null : holders.get(vb);
+            if (ca != null && ca.isConst() && (i.b == null || (cb != null && cb.isConst()))) {
+                Integer folded = fold(i.op, ca.number, cb == null ? 0 : cb.number);
+                if (folded != null) {
+                    rewriteAsCopy(i, Operand.constant(folded));
+                    numbers.put(i.dst, valueNumber(i.a, numbers, holders, next));
+                    changed = true;
+                    continue;
+                }
+            }
+            if (i.op.isCommutative() && va > vb) {
+                int t = va;
+                va = vb;
+                vb = t;
+            }
+            List<Object> key = Arrays.asList(i.op, va, vb);
+            Integer v = expressions.get(key);
+            Operand holder = v == null ? null : holders.get(v);
+            // a variable holder is stale once it has been reassigned; temps are assigned once
+            if (holder != null && v.equals(numbers.get(holder))) {
+                rewriteAsCopy(i, holder);
+                numbers.put(i.dst, v);
+                changed = true;
+            } else {
+                v = next[0]++;
+                numbers.put(i.dst, v);
+                holders.put(v, i.dst);
+                expressions.put(key, v);
+            }
+        }
+        return changed;
+    }
+
+    private static int valueNumber(Operand o, Map<Operand, Integer> numbers, Map<Integer, Operand> holders, int[] next) {
+        Integer v = numbers.get(o);
+        if (v == null) {
+            v = next[0]++;
+            numbers.put(o, v);
+            holders.put(v, o);
+        }
+        return v;
+    }
+
+    private static void rewriteAsCopy(Instr i, Operand source) {
+        i.op = Op.Copy;
+        i.a = source;
+        i.b = null;
+    }
+
+    /**
+     * Local copy propagation: after d = copy s, later reads of d read s instead until either is redefined.
+     *
+     * @param b the block to rewrite
+     * @return true if any operand changed
+     */
+    static boolean copyPropagation(Block b) {
+        Map<Operand, Operand> copyOf = new HashMap<>();
+        boolean changed = false;
+        for (Instr i : b.instrs) {
+            Operand a = i.a == null ? null : copyOf.get(i.a);
+            if (a != null) {
+                i.a = a;
+                changed = true;
+            }
+            Operand bb = i.b == null ? null : copyOf.get(i.b);
+            if (bb != null) {
+                i.b = bb;
+                changed = true;
+            }
+            if (i.dst != null) {
+                copyOf.remove(i.dst);
+                copyOf.values().removeIf(src -> src.equals(i.dst));
+                if (i.op == Op.Copy && !i.a.equals(i.dst)) {
+                    copyOf.put(i.dst, i.a);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Dead-store elimination over the CFG: computes live variables and registers per block and
+     * removes side-effect-free definitions whose result is never read afterwards.
+     *
+     * @param cfg the program to rewrite
+     * @return true if any instruction was removed
+     */
+    static boolean deadStoreElimination(Cfg cfg) {
+        Map<Block, Set<Operand>> liveIn = new HashMap<>();
+        Map<Block, Set<Operand>> liveOut = new HashMap<>();
+        for (Block b : cfg.blocks) {
+            liveIn.put(b, new HashSet<>());
+            liveOut.put(b, new HashSet<>());
+        }
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = cfg.blocks.size() - 1; k >= 0; k--) {
+                Block b = cfg.blocks.get(k);
+                Set<Operand> out = liveOut.get(b);
+                for (Block s : b.succs) {
+                    changed |= out.addAll(liveIn.get(s));
+                }
+                Set<Operand> in = new HashSet<>(out);
+                for (int j = b.instrs.size() - 1; j >= 0; j--) {
+                    Instr i = b.instrs.get(j);
+                    if (i.dst != null) {
+                        in.remove(i.dst);
+                    }
+                    for (Operand u : i.uses()) {
+                        if (!u.isConst()) {
+                            in.add(u);
+                        }
+                    }
+                }
+                if (!in.equals(liveIn.get(b))) {
+                    liveIn.put(b, in);
+                    changed = true;
+                }
+            }
+        }
+
+        boolean removed = false;
+        for (Block b : cfg.blocks) {
+            Set<Operand> live = new HashSet<>(liveOut.get(b));
+            for (int j = b.instrs.size() - 1; j >= 0; j--) {
+                Instr i = b.instrs.get(j);
+                boolean selfCopy = i.op == Op.Copy && i.a.equals(i.dst);
+                if (i.dst != null && !i.op.hasSideEffect() && (selfCopy || !live.contains(i.dst))) {
+                    b.instrs.remove(j);
+                    removed = true;
+                    continue;
+                }
+                if (i.dst != null) {
+                    live.remove(i.dst);
+                }
+                for (Operand u : i.uses()) {
+                    if (!u.isConst()) {
+                        live.add(u);
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    static void outputToFile(String result, String fileName) {
+        try {
+            FileWriter myWriter = new FileWriter("src/main/resources/myIR" +
+                    fileName.substring(0, fileName.lastIndexOf(".")) + ".ir");
+            myWriter.write(result);
+            myWriter.close();
+            System.out.println("Successfully wrote to the file.");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Dumps the IR of .lex files as text. Pass a .lex file name to lower only that file, otherwise the
+     * provided .lex files (not the myLexed outputs) are dumped. Pass --no-opt to dump the IR exactly as
+     * lowered, before optimization.
+     */
+    public static void main(String[] args) {
+        List<String> fileList = new ArrayList<>();
+        boolean optimize = true;
+        for (String arg : args) {
+            if (arg.equals("--no-opt")) {
+                optimize = false;
+            } else {
+                fileList.add(arg);
+            }
+        }
+        if (fileList.isEmpty()) {
+            // only the provided .lex files, whose myIR dumps are checked in next to their .ir goldens
+            String[] contents = Objects.requireNonNull(new File("src/main/resources/").list());
+            Arrays.sort(contents);
+            for (String name : contents) {
+                if (name.endsWith(".lex") && !name.startsWith("myLexed")) {
+                    fileList.add(name);
+                }
+            }
+        }
+
+        for (String fileName : fileList) {
+            try {
+                List<Parser.Token> tokens = Parser.readTokens(new File("src/main/resources/" + fileName));
+                Cfg cfg = lower(new Parser(tokens).parse());
+                if (optimize) {
+                    optimize(cfg);
+                }
+                String result = cfg.toString();
+                System.out.print(result);
+                outputToFile(result, fileName);
+            } catch (CompileException e) {
+                Parser.exit(e.getMessage());
+            } catch (Exception e) {
+                Parser.exit("Exception: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,1091 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Executes Parser ASTs.
+ * {@link #walk} is a plain recursive tree walk over Parser.Node with variables in a map, kept as the
+ * reference semantics and as the baseline for benchmarks. {@link #compile} turns the AST into executable
+ * nodes, each with one execute(frame) method, with variables resolved to frame slots up front.
+ * <p>
+ * Executable nodes start out uninitialized and rewrite themselves in place the first time they run,
+ * based on what their children turned out to be: an operation on two constants becomes a constant,
+ * an operation with a constant operand becomes an immediate node, {@code x = x + c} becomes an increment,
+ * a While or If whose condition is a comparison becomes a fused compare-and-branch node, and a
+ * constant putc or print of a string becomes a precomputed byte write. Conditions are evaluated through
+ * executeBoolean so comparisons never materialize 0/1 on the way to a branch. Every node class has one
+ * job, which keeps the call sites in a specialized tree monomorphic for the JIT.
+ * <p>
+ * Semantics follow IR.fold: 32-bit wrap-around arithmetic, comparisons and logical operators yield 0 or 1,
+ * and And/Or evaluate both operands. Division by zero throws ArithmeticException.
+ */
+class Interpreter {
+
+    /**
+     * Buffered byte sink for program output, shared by both engines so they are measured alike.
+     */
+    static final class Output {
+        private final OutputStream out;
+        private final byte[] buf = new byte[1 << 13];
+        private int count;
+
+        Output(OutputStream out) {
+            this.out = out;
+        }
+
+        void write(int b) {
+            if (this.count == this.buf.length) {
+                flush();
+            }
+            this.buf[this.count++] = (byte) b;
+        }
+
+        void write(byte[] bytes) {
+            if (bytes.length > this.buf.length - this.count) {
+                flush();
+                if (bytes.length > this.buf.length) {
+                    try {
+                        this.out.write(bytes);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return;
+                }
+            }
+            System.arraycopy(bytes, 0, this.buf, this.count, bytes.length);
+            this.count += bytes.length;
+        }
+
+        void writeInt(int v) {
+            if (this.count > this.buf.length - 11) {
+                flush();
+            }
+            if (v == Integer.MIN_VALUE) {
+                write("-2147483648".getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            if (v < 0) {
+                this.buf[this.count++] = '-';
+                v = -v;
+            }
+            int end = this.count + digits(v);
+            this.count = end;
+            do {
+                this.buf[--end] = (byte) ('0' + v % 10);
+                v /= 10;
+            } while (v != 0);
+        }
+
+        private static int digits(int v) {
+            int n = 1;
+            while (v >= 10) {
+                v /= 10;
+                n++;
+            }
+            return n;
+        }
+
+        void flush() {
+            try {
+                this.out.write(this.buf, 0, this.count);
+                this.out.flush();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.count = 0;
+        }
+    }
+
+    /**
+     * Variable slots and output of one run.
+     */
+    static final class Frame {
+        final int[] slots;
+        final Output out;
+
+        Frame(int slots, Output out) {
+            this.slots = new int[slots];
+            this.out = out;
+        }
+    }
+
+    // ---------------------------------------------------------------- naive tree walk
+
+    /**
+     * runs an AST by walking it directly
+     *
+     * @param root the program, may be null
+     * @param out  receives the program's output
+     */
+    static void walk(Parser.Node root, OutputStream out) {
+        Output o = new Output(out);
+        walkStmt(root, new HashMap<>(), o);
+        o.flush();
+    }
+
+    private static void walkStmt(Parser.Node n, Map<String, Integer> vars, Output out) {
+        if (n == null) {
+            return;
+        }
+        switch (n.nt) {
+            case nd_Sequence: {
+                // walk the left-deep spine iteratively so long programs do not overflow the stack
+                Deque<Parser.Node> spine = new ArrayDeque<>();
+                Parser.Node s = n;
+                while (s != null && s.nt == Parser.NodeType.nd_Sequence) {
+                    spine.push(s);
+                    s = s.left;
+                }
+                walkStmt(s, vars, out);
+                while (!spine.isEmpty()) {
+                    walkStmt(spine.pop().right, vars, out);
+                }
+                break;
+            }
+            case nd_Assign:
+                vars.put(n.left.value.trim(), walkExpr(n.right, vars));
+                break;
+            case nd_If:
+                if (walkExpr(n.left, vars) != 0) {
+                    walkStmt(n.right.left, vars, out);
+                } else {
+                    walkStmt(n.right.right, vars, out);
+                }
+                break;
+            case nd_While:
+                while (walkExpr(n.left, vars) != 0) {
+                    walkStmt(n.right, vars, out);
+                }
+                break;
+            case nd_Prtc:
+                out.write(walkExpr(n.left, vars));
+                break;
+            case nd_Prti:
+                out.writeInt(walkExpr(n.left, vars));
+                break;
+            case nd_Prts:
+                out.write(n.left.decoded.getBytes(StandardCharsets.UTF_8));
+                break;
+            default:
+                throw new IllegalStateException("unexpected statement node " + n.nt);
+        }
+    }
+
+    private static int walkExpr(Parser.Node n, Map<String, Integer> vars) {
+        switch (n.nt) {
+            case nd_Integer: return n.number;
+            case nd_Ident: return vars.getOrDefault(n.value.trim(), 0);
+            case nd_Negate: return -walkExpr(n.left, vars);
+            case nd_Not: return walkExpr(n.left, vars) == 0 ? 1 : 0;
+            default:
+        }
+        int a = walkExpr(n.left, vars);
+        int b = walkExpr(n.right, vars);
+        switch (n.nt) {
+            case nd_Add: return a + b;
+            case nd_Sub: return a - b;
+            case nd_Mul: return a * b;
+            case nd_Div: return a / b;
+            case nd_Mod: return a % b;
+            case nd_Lss: return a < b ? 1 : 0;
+            case nd_Leq: return a <= b ? 1 : 0;
+            case nd_Gtr: return a > b ? 1 : 0;
+            case nd_Geq: return a >= b ? 1 : 0;
+            case nd_Eql: return a == b ? 1 : 0;
+            case nd_Neq: return a != b ? 1 : 0;
+            case nd_And: return (a != 0 && b != 0) ? 1 : 0;
+            case nd_Or: return (a != 0 || b != 0) ? 1 : 0;
+            default: throw new IllegalStateException("unexpected expression node " + n.nt);
+        }
+    }
+
+    // ---------------------------------------------------------------- executable nodes
+
+    /**
+     * Base of all executable nodes. Statements return 0 from execute.
+     */
+    abstract static class ExecNode {
+        ExecNode parent;
+
+        abstract int execute(Frame frame);
+
+        boolean executeBoolean(Frame frame) {
+            return execute(frame) != 0;
+        }
+
+        /**
+         * swaps a child for its replacement; every node with children overrides this
+         */
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            throw new IllegalStateException(getClass().getSimpleName() + " has no child " + child);
+        }
+
+        final <T extends ExecNode> T adopt(T child) {
+            if (child != null) {
+                child.parent = this;
+            }
+            return child;
+        }
+
+        /**
+         * rewrites this node in place: the parent points at the replacement from now on
+         */
+        final <T extends ExecNode> T replace(T replacement) {
+            this.parent.replaceChild(this, replacement);
+            replacement.parent = this.parent;
+            ExecNode root = replacement;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            ((RootNode) root).rewrites++;
+            return replacement;
+        }
+    }
+
+    /**
+     * Entry point of a compiled program.
+     */
+    static final class RootNode extends ExecNode {
+        private ExecNode body;
+        private final int slots;
+        private int rewrites;
+
+        RootNode(ExecNode body, int slots) {
+            this.body = adopt(body);
+            this.slots = slots;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.body.execute(frame);
+        }
+
+        /**
+         * runs the program; the tree keeps its specializations for later runs
+         *
+         * @param out receives the program's output
+         */
+        void run(OutputStream out) {
+            Output o = new Output(out);
+            execute(new Frame(this.slots, o));
+            o.flush();
+        }
+
+        /**
+         * @return how many nodes have rewritten themselves so far
+         */
+        int rewrites() {
+            return this.rewrites;
+        }
+
+        @Override
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            this.body = adopt(replacement);
+        }
+    }
+
+    static final class BlockNode extends ExecNode {
+        private final ExecNode[] statements;
+
+        BlockNode(ExecNode[] statements) {
+            this.statements = statements;
+            for (ExecNode s : statements) {
+                adopt(s);
+            }
+        }
+
+        @Override
+        int execute(Frame frame) {
+            for (ExecNode s : this.statements) {
+                s.execute(frame);
+            }
+            return 0;
+        }
+
+        @Override
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            for (int i = 0; i < this.statements.length; i++) {
+                if (this.statements[i] == child) {
+                    this.statements[i] = adopt(replacement);
+                }
+            }
+        }
+    }
+
+    static final class ConstNode extends ExecNode {
+        final int value;
+
+        ConstNode(int value) {
+            this.value = value;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.value;
+        }
+    }
+
+    static final class LocalNode extends ExecNode {
+        final int slot;
+
+        LocalNode(int slot) {
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return frame.slots[this.slot];
+        }
+    }
+
+    /**
+     * Common shape of nodes with one or two operands, so rewrites can move the operands over.
+     */
+    abstract static class OperatorNode extends ExecNode {
+        ExecNode left, right;
+
+        OperatorNode(ExecNode left, ExecNode right) {
+            this.left = adopt(left);
+            this.right = adopt(right);
+        }
+
+        @Override
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            if (this.left == child) {
+                this.left = adopt(replacement);
+            } else if (this.right == child) {
+                this.right = adopt(replacement);
+            }
+        }
+    }
+
+    /**
+     * A unary or binary operation that has not run yet. On first execution it executes its operands,
+     * which specializes them, and then replaces itself by the node that fits what they became.
+     */
+    static final class UninitializedOperatorNode extends OperatorNode {
+        private final IR.Op op;
+
+        UninitializedOperatorNode(IR.Op op, ExecNode left, ExecNode right) {
+            super(left, right);
+            this.op = op;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            int a = this.left.execute(frame);
+            int b = this.right == null ? 0 : this.right.execute(frame);
+            specialize();
+            Integer result = IR.fold(this.op, a, b);
+            if (result == null) {
+                throw new ArithmeticException("/ by zero");
+            }
+            return result;
+        }
+
+        @Override
+        boolean executeBoolean(Frame frame) {
+            return execute(frame) != 0;
+        }
+
+        private ExecNode specialize() {
+            ExecNode l = this.left;
+            ExecNode r = this.right;
+            if (this.op == IR.Op.Negate) {
+                return replace(l instanceof ConstNode ? new ConstNode(-((ConstNode) l).value) : new NegateNode(l));
+            }
+            if (this.op == IR.Op.Not) {
+                return replace(new NotNode(l));
+            }
+            if (l instanceof ConstNode && r instanceof ConstNode) {
+                Integer folded = IR.fold(this.op, ((ConstNode) l).value, ((ConstNode) r).value);
+                if (folded != null) {
+                    return replace(new ConstNode(folded));
+                }
+            }
+            if (l instanceof ConstNode && this.op.isCommutative() && !(r instanceof ConstNode)) {
+                ExecNode swap = l;
+                l = r;
+                r = swap;
+            }
+            if (r instanceof ConstNode) {
+                int c = ((ConstNode) r).value;
+                switch (this.op) {
+                    case Add: return replace(new AddImmediateNode(l, c));
+                    case Sub: return replace(new AddImmediateNode(l, -c));
+                    case Mul: return replace(new MulImmediateNode(l, c));
+                    case Div: if (c != 0) return replace(new DivImmediateNode(l, c)); break;
+                    case Mod: if (c != 0) return replace(new ModImmediateNode(l, c)); break;
+                    case Lss: case Leq: case Gtr: case Geq: case Eql: case Neq:
+                        return replace(new CompareImmediateNode(this.op, l, c));
+                    default:
+                }
+            }
+            switch (this.op) {
+                case Add: return replace(new AddNode(l, r));
+                case Sub: return replace(new SubNode(l, r));
+                case Mul: return replace(new MulNode(l, r));
+                case Div: return replace(new DivNode(l, r));
+                case Mod: return replace(new ModNode(l, r));
+                case And: return replace(new AndNode(l, r));
+                case Or: return replace(new OrNode(l, r));
+                default: return replace(new CompareNode(this.op, l, r));
+            }
+        }
+    }
+
+    static final class NegateNode extends OperatorNode {
+        NegateNode(ExecNode operand) {
+            super(operand, null);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return -this.left.execute(frame);
+        }
+    }
+
+    static final class NotNode extends OperatorNode {
+        NotNode(ExecNode operand) {
+            super(operand, null);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return executeBoolean(frame) ? 1 : 0;
+        }
+
+        @Override
+        boolean executeBoolean(Frame frame) {
+            return !this.left.executeBoolean(frame);
+        }
+    }
+
+    static final class AddNode extends OperatorNode {
+        AddNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) + this.right.execute(frame);
+        }
+    }
+
+    static final class SubNode extends OperatorNode {
+        SubNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) - this.right.execute(frame);
+        }
+    }
+
+    static final class MulNode extends OperatorNode {
+        MulNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) * this.right.execute(frame);
+        }
+    }
+
+    static final class DivNode extends OperatorNode {
+        DivNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) / this.right.execute(frame);
+        }
+    }
+
+    static final class ModNode extends OperatorNode {
+        ModNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) % this.right.execute(frame);
+        }
+    }
+
+    static final class AndNode extends OperatorNode {
+        AndNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return executeBoolean(frame) ? 1 : 0;
+        }
+
+        @Override
+        boolean executeBoolean(Frame frame) {
+            // both sides run, as in IR.fold, so a division by zero on the right still traps
+            boolean a = this.left.executeBoolean(frame);
+            return this.right.executeBoolean(frame) & a;
+        }
+    }
+
+    static final class OrNode extends OperatorNode {
+        OrNode(ExecNode left, ExecNode right) {
+            super(left, right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return executeBoolean(frame) ? 1 : 0;
+        }
+
+        @Override
+        boolean executeBoolean(Frame frame) {
+            boolean a = this.left.executeBoolean(frame);
+            return this.right.executeBoolean(frame) | a;
+        }
+    }
+
+    static final class AddImmediateNode extends OperatorNode {
+        final int immediate;
+
+        AddImmediateNode(ExecNode operand, int immediate) {
+            super(operand, null);
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) + this.immediate;
+        }
+    }
+
+    static final class MulImmediateNode extends OperatorNode {
+        final int immediate;
+
+        MulImmediateNode(ExecNode operand, int immediate) {
+            super(operand, null);
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) * this.immediate;
+        }
+    }
+
+    static final class DivImmediateNode extends OperatorNode {
+        final int immediate;
+
+        DivImmediateNode(ExecNode operand, int immediate) {
+            super(operand, null);
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) / this.immediate;
+        }
+    }
+
+    static final class ModImmediateNode extends OperatorNode {
+        final int immediate;
+
+        ModImmediateNode(ExecNode operand, int immediate) {
+            super(operand, null);
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return this.left.execute(frame) % this.immediate;
+        }
+    }
+
+    static boolean compare(IR.Op op, int a, int b) {
+        switch (op) {
+            case Lss: return a < b;
+            case Leq: return a <= b;
+            case Gtr: return a > b;
+            case Geq: return a >= b;
+            case Eql: return a == b;
+            default: return a != b;
+        }
+    }
+
+    static final class CompareNode extends OperatorNode {
+        final IR.Op op;
+
+        CompareNode(IR.Op op, ExecNode left, ExecNode right) {
+            super(left, right);
+            this.op = op;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return executeBoolean(frame) ? 1 : 0;
+        }
+
+        @Override
+        boolean executeBoolean(Frame frame) {
+            return compare(this.op, this.left.execute(frame), this.right.execute(frame));
+        }
+    }
+
+    static final class CompareImmediateNode extends OperatorNode {
+        final IR.Op op;
+        final int immediate;
+
+        CompareImmediateNode(IR.Op op, ExecNode operand, int immediate) {
+            super(operand, null);
+            this.op = op;
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            return executeBoolean(frame) ? 1 : 0;
+        }
+
+        @Override
+        boolean executeBoolean(Frame frame) {
+            return compare(this.op, this.left.execute(frame), this.immediate);
+        }
+    }
+
+    /**
+     * An assignment that has not run yet; becomes an increment for {@code x = x + c}, else a plain write.
+     */
+    static final class UninitializedAssignNode extends OperatorNode {
+        private final int slot;
+
+        UninitializedAssignNode(int slot, ExecNode value) {
+            super(value, null);
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.slots[this.slot] = this.left.execute(frame);
+            ExecNode value = this.left;
+            if (value instanceof AddImmediateNode && ((AddImmediateNode) value).left instanceof LocalNode
+                    && ((LocalNode) ((AddImmediateNode) value).left).slot == this.slot) {
+                replace(new IncrementNode(this.slot, ((AddImmediateNode) value).immediate));
+            } else {
+                replace(new WriteNode(this.slot, value));
+            }
+            return 0;
+        }
+    }
+
+    static final class WriteNode extends OperatorNode {
+        private final int slot;
+
+        WriteNode(int slot, ExecNode value) {
+            super(value, null);
+            this.slot = slot;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.slots[this.slot] = this.left.execute(frame);
+            return 0;
+        }
+    }
+
+    static final class IncrementNode extends ExecNode {
+        private final int slot;
+        private final int delta;
+
+        IncrementNode(int slot, int delta) {
+            this.slot = slot;
+            this.delta = delta;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.slots[this.slot] += this.delta;
+            return 0;
+        }
+    }
+
+    /**
+     * Shape shared by While and If: a condition and up to two statements.
+     */
+    abstract static class BranchNode extends ExecNode {
+        ExecNode condition, body, otherwise;
+
+        BranchNode(ExecNode condition, ExecNode body, ExecNode otherwise) {
+            this.condition = adopt(condition);
+            this.body = adopt(body);
+            this.otherwise = adopt(otherwise);
+        }
+
+        @Override
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            if (this.condition == child) {
+                this.condition = adopt(replacement);
+            } else if (this.body == child) {
+                this.body = adopt(replacement);
+            } else if (this.otherwise == child) {
+                this.otherwise = adopt(replacement);
+            }
+        }
+
+        /**
+         * after the condition has run once: a fused node if it became a comparison, else the generic one
+         */
+        ExecNode specialize(boolean loop) {
+            ExecNode c = this.condition;
+            if (c instanceof CompareNode) {
+                CompareNode cmp = (CompareNode) c;
+                return replace(loop ? new WhileCompareNode(cmp.op, cmp.left, cmp.right, this.body)
+                        : new IfCompareNode(cmp.op, cmp.left, cmp.right, this.body, this.otherwise));
+            }
+            if (c instanceof CompareImmediateNode) {
+                CompareImmediateNode cmp = (CompareImmediateNode) c;
+                return replace(loop ? new WhileCompareImmediateNode(cmp.op, cmp.left, cmp.immediate, this.body)
+                        : new IfCompareImmediateNode(cmp.op, cmp.left, cmp.immediate, this.body, this.otherwise));
+            }
+            return replace(loop ? new WhileNode(c, this.body) : new IfNode(c, this.body, this.otherwise));
+        }
+    }
+
+    static final class UninitializedWhileNode extends BranchNode {
+        UninitializedWhileNode(ExecNode condition, ExecNode body) {
+            super(condition, body, null);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            boolean enter = this.condition.executeBoolean(frame);
+            ExecNode loop = specialize(true);
+            if (enter) {
+                this.body.execute(frame);
+                loop.execute(frame);
+            }
+            return 0;
+        }
+    }
+
+    static final class UninitializedIfNode extends BranchNode {
+        UninitializedIfNode(ExecNode condition, ExecNode body, ExecNode otherwise) {
+            super(condition, body, otherwise);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            boolean taken = this.condition.executeBoolean(frame);
+            specialize(false);
+            ExecNode next = taken ? this.body : this.otherwise;
+            if (next != null) {
+                next.execute(frame);
+            }
+            return 0;
+        }
+    }
+
+    static final class WhileNode extends BranchNode {
+        WhileNode(ExecNode condition, ExecNode body) {
+            super(condition, body, null);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            while (this.condition.executeBoolean(frame)) {
+                this.body.execute(frame);
+            }
+            return 0;
+        }
+    }
+
+    static final class IfNode extends BranchNode {
+        IfNode(ExecNode condition, ExecNode body, ExecNode otherwise) {
+            super(condition, body, otherwise);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            if (this.condition.executeBoolean(frame)) {
+                this.body.execute(frame);
+            } else if (this.otherwise != null) {
+                this.otherwise.execute(frame);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * A While whose condition compares two operands, evaluated without a separate comparison node.
+     * The left operand takes the condition slot and the right one gets its own child slot.
+     */
+    static final class WhileCompareNode extends BranchNode {
+        private final IR.Op op;
+        private ExecNode right;
+
+        WhileCompareNode(IR.Op op, ExecNode left, ExecNode right, ExecNode body) {
+            super(left, body, null);
+            this.op = op;
+            this.right = adopt(right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            while (compare(this.op, this.condition.execute(frame), this.right.execute(frame))) {
+                this.body.execute(frame);
+            }
+            return 0;
+        }
+
+        @Override
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            if (this.right == child) {
+                this.right = adopt(replacement);
+            } else {
+                super.replaceChild(child, replacement);
+            }
+        }
+    }
+
+    static final class WhileCompareImmediateNode extends BranchNode {
+        private final IR.Op op;
+        private final int immediate;
+
+        WhileCompareImmediateNode(IR.Op op, ExecNode operand, int immediate, ExecNode body) {
+            super(operand, body, null);
+            this.op = op;
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            while (compare(this.op, this.condition.execute(frame), this.immediate)) {
+                this.body.execute(frame);
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * An If whose condition compares two operands, laid out like WhileCompareNode.
+     */
+    static final class IfCompareNode extends BranchNode {
+        private final IR.Op op;
+        private ExecNode right;
+
+        IfCompareNode(IR.Op op, ExecNode left, ExecNode right, ExecNode body, ExecNode otherwise) {
+            super(left, body, otherwise);
+            this.op = op;
+            this.right = adopt(right);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            if (compare(this.op, this.condition.execute(frame), this.right.execute(frame))) {
+                this.body.execute(frame);
+            } else if (this.otherwise != null) {
+                this.otherwise.execute(frame);
+            }
+            return 0;
+        }
+
+        @Override
+        void replaceChild(ExecNode child, ExecNode replacement) {
+            if (this.right == child) {
+                this.right = adopt(replacement);
+            } else {
+                super.replaceChild(child, replacement);
+            }
+        }
+    }
+
+    static final class IfCompareImmediateNode extends BranchNode {
+        private final IR.Op op;
+        private final int immediate;
+
+        IfCompareImmediateNode(IR.Op op, ExecNode operand, int immediate, ExecNode body, ExecNode otherwise) {
+            super(operand, body, otherwise);
+            this.op = op;
+            this.immediate = immediate;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            if (compare(this.op, this.condition.execute(frame), this.immediate)) {
+                this.body.execute(frame);
+            } else if (this.otherwise != null) {
+                this.otherwise.execute(frame);
+            }
+            return 0;
+        }
+    }
+
+    static final class PrintIntNode extends OperatorNode {
+        PrintIntNode(ExecNode value) {
+            super(value, null);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.out.writeInt(this.left.execute(frame));
+            return 0;
+        }
+    }
+
+    static final class PrintCharNode extends OperatorNode {
+        PrintCharNode(ExecNode value) {
+            super(value, null);
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.out.write(this.left.execute(frame));
+            return 0;
+        }
+    }
+
+    /**
+     * Output that is the same on every run, encoded once.
+     */
+    static final class PrintBytesNode extends ExecNode {
+        private final byte[] bytes;
+
+        PrintBytesNode(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        int execute(Frame frame) {
+            frame.out.write(this.bytes);
+            return 0;
+        }
+    }
+
+    // ---------------------------------------------------------------- AST to executable nodes
+
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    private Interpreter() {
+    }
+
+    /**
+     * converts an AST into an executable tree of uninitialized nodes
+     *
+     * @param root the program, may be null
+     * @return the entry node; run it as often as needed, it stays specialized
+     */
+    static RootNode compile(Parser.Node root) {
+        Interpreter c = new Interpreter();
+        ExecNode body = c.stmt(root);
+        return new RootNode(body, c.slots.size());
+    }
+
+    private int slot(Parser.Node ident) {
+        return this.slots.computeIfAbsent(ident.value.trim(), k -> this.slots.size());
+    }
+
+    private ExecNode stmt(Parser.Node n) {
+        if (n == null) {
+            return new BlockNode(new ExecNode[0]);
+        }
+        switch (n.nt) {
+            case nd_Sequence: {
+                // flatten the left-deep spine into one block, iteratively so long programs do not overflow the stack
+                Deque<Parser.Node> spine = new ArrayDeque<>();
+                Parser.Node s = n;
+                while (s != null && s.nt == Parser.NodeType.nd_Sequence) {
+                    spine.push(s);
+                    s = s.left;
+                }
+                List<ExecNode> statements = new ArrayList<>();
+                if (s != null) {
+                    statements.add(stmt(s));
+                }
+                while (!spine.isEmpty()) {
+                    Parser.Node next = spine.pop().right;
+                    if (next != null) {
+                        statements.add(stmt(next));
+                    }
+                }
+                return statements.size() == 1 ? statements.get(0) : new BlockNode(statements.toArray(new ExecNode[0]));
+            }
+            case nd_Assign:
+                return new UninitializedAssignNode(slot(n.left), expr(n.right));
+            case nd_If:
+                return new UninitializedIfNode(expr(n.left), stmt(n.right.left),
+                        n.right.right == null ? null : stmt(n.right.right));
+            case nd_While:
+                return new UninitializedWhileNode(expr(n.left), stmt(n.right));
+            case nd_Prtc: {
+                ExecNode value = expr(n.left);
+                if (value instanceof ConstNode) {
+                    return new PrintBytesNode(new byte[]{(byte) ((ConstNode) value).value});
+                }
+                return new PrintCharNode(value);
+            }
+            case nd_Prti:
+                return new PrintIntNode(expr(n.left));
+            case nd_Prts:
+                return new PrintBytesNode(n.left.decoded.getBytes(StandardCharsets.UTF_8));
+            default:
+                throw new IllegalStateException("unexpected statement node " + n.nt);
+        }
+    }
+
+    private ExecNode expr(Parser.Node n) {
+        switch (n.nt) {
+            case nd_Integer:
+                return new ConstNode(n.number);
+            case nd_Ident:
+                return new LocalNode(slot(n));
+            default:
+                IR.Op op = IR.Op.fromNodeType(n.nt);
+                if (op == null) {
+                    throw new IllegalStateException("unexpected expression node " + n.nt);
+                }
+                return new UninitializedOperatorNode(op, expr(n.left), op.isBinary() ? expr(n.right) : null);
+        }
+    }
+
+    /**
+     * Runs .lex files with the specializing engine and prints their output. Pass .lex file names to run
+     * those instead of myLexedfizzbuzz.lex, and --walk to use the plain tree walk instead.
+     */
+    public static void main(String[] args) {
+        List<String> fileList = new ArrayList<>();
+        boolean walk = false;
+        for (String arg : args) {
+            if (arg.equals("--walk")) {
+                walk = true;
+            } else {
+                fileList.add(arg);
+            }
+        }
+        if (fileList.isEmpty()) {
+            // prime.c divides by zero under the Parser's precedence (see InterpreterBenchmark), so not that one
+            fileList.add("myLexedfizzbuzz.lex");
+        }
+
+        for (String fileName : fileList) {
+            try {
+                List<Parser.Token> tokens = Parser.readTokens(new File("src/main/resources/" + fileName));
+                Parser.Node tree = new Parser(tokens).parse();
+                if (walk) {
+                    walk(tree, System.out);
+                } else {
+                    compile(tree).run(System.out);
+                }
+            } catch (Exception e) {
+                Parser.exit("Exception: " + e.getMessage());
+            }
+        }
+    }
+}
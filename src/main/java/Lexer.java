@@ -1,11 +1,10 @@
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Map;
-import java.util.Scanner;
 
 /**
  * Lexer Class.
@@ -18,14 +17,25 @@ public class Lexer {
     private int position;
     private char chr;
     private String s;
+    private int tokenCount;
+    private CompileBudget budget = CompileBudget.UNLIMITED;
 
-    Map<String, TokenType> keywords = new HashMap<>();
+    static final Map<String, TokenType> keywords = Map.of(
+            "if", TokenType.Keyword_if,
+            "else", TokenType.Keyword_else,
+            "print", TokenType.Keyword_print,
+            "putc", TokenType.Keyword_putc,
+            "while", TokenType.Keyword_while);
 
     static class Token {
         public TokenType tokentype;
         public String value;
         public int line;
         public int pos;
+        public int number;      // decoded value of Integer tokens, including char literals
+        public String decoded;  // String tokens with escape sequences resolved
+        public int start = -1;  // source span of literals, [start, end)
+        public int end = -1;
 
         Token(TokenType token, String value, int line, int pos) {
             this.tokentype = token;
@@ -34,21 +44,76 @@ public class Lexer {
             this.pos = pos;
         }
 
+        Token(TokenType token, String value, int number, String decoded, int start, int end, int line, int pos) {
+            this(token, value, line, pos);
+            this.number = number;
+            this.decoded = decoded;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * formats the token as a .lex line, padding by hand rather than through String.format
+         * so that the startup path does not load Formatter and its regex machinery
+         */
         @Override
         public String toString() {
-            String result = String.format("%5d  %5d %-15s", this.line, this.pos, this.tokentype);
+            StringBuilder result = new StringBuilder(32);
+            appendTo(result);
+            return result.toString();
+        }
+
+        /**
+         * appends the .lex line for this token, without the trailing newline
+         *
+         * @param result the builder to append to
+         */
+        void appendTo(StringBuilder result) {
+            padLeft(result, String.valueOf(this.line), 5);
+            result.append("  ");
+            padLeft(result, String.valueOf(this.pos), 5);
+            result.append(' ');
+            padRight(result, this.tokentype.name(), 15);
             switch (this.tokentype) {
                 case Integer:
-                    result += String.format("  %4s", value);
+                    result.append("  ");
+                    padLeft(result, value, 4);
                     break;
                 case Identifier:
-                    result += String.format(" %s", value);
+                    result.append(' ').append(value);
                     break;
                 case String:
-                    result += String.format(" \"%s\"", value);
+                    result.append(" \"").append(value).append('\"');
                     break;
             }
-            return result;
+        }
+    }
+
+    /**
+     * appends text right-justified in a field of the given width, like "%5s"
+     *
+     * @param sb    the builder to append to
+     * @param text  the text to append
+     * @param width the minimum field width
+     */
+    static void padLeft(StringBuilder sb, String text, int width) {
+        for (int i = text.length(); i < width; i++) {
+            sb.append(' ');
+        }
+        sb.append(text);
+    }
+
+    /**
+     * appends text left-justified in a field of the given width, like "%-15s"
+     *
+     * @param sb    the builder to append to
+     * @param text  the text to append
+     * @param width the minimum field width
+     */
+    static void padRight(StringBuilder sb, String text, int width) {
+        sb.append(text);
+        for (int i = text.length(); i < width; i++) {
+            sb.append(' ');
         }
     }
 
@@ -60,27 +125,53 @@ public class Lexer {
         LeftBrace, RightBrace, Semicolon, Comma, Identifier, Integer, String
     }
 
+    /**
+     * reports a lexical error by throwing, so a failing compile never takes the JVM down with it
+     *
+     * @param line the line of the offending token
+     * @param pos  its position in the line
+     * @param msg  the diagnostic
+     */
     static void error(int line, int pos, String msg) {
-        if (line > 0 && pos > 0) {
-            System.out.printf("%s in line %d, pos %d\n", msg, line, pos);
-        } else {
-            System.out.println(msg);
-        }
-        System.exit(1);
+        throw new CompileException(CompileException.Kind.SYNTAX, msg, line, pos);
     }
 
     Lexer(String source) {
+        this(source, CompileBudget.UNLIMITED);
+    }
+
+    /**
+     * @param source the source text, starting with the leading space readSource adds
+     * @param budget the limits this compile runs under, as returned by CompileBudget.start()
+     */
+    Lexer(String source, CompileBudget budget) {
+        reset(source, budget);
+    }
+
+    /**
+     * rewinds the lexer onto a new source so one instance can be reused across compiles, keeping the budget
+     *
+     * @param source the source text, starting with the leading space readSource adds
+     */
+    void reset(String source) {
+        reset(source, this.budget);
+    }
+
+    /**
+     * rewinds the lexer onto a new source under a new budget
+     *
+     * @param source the source text, starting with the leading space readSource adds
+     * @param budget the limits this compile runs under, as returned by CompileBudget.start()
+     */
+    void reset(String source, CompileBudget budget) {
+        budget.checkSource(source.length() - 1);
+        this.budget = budget;
         this.line = 1;
         this.pos = 0;
         this.position = 0;
         this.s = source;
         this.chr = this.s.charAt(0);
-        this.keywords.put("if", TokenType.Keyword_if);
-        this.keywords.put("else", TokenType.Keyword_else);
-        this.keywords.put("print", TokenType.Keyword_print);
-        this.keywords.put("putc", TokenType.Keyword_putc);
-        this.keywords.put("while", TokenType.Keyword_while);
-
+        this.tokenCount = 0;
     }
 
     /**
@@ -107,33 +198,107 @@ public class Lexer {
     }
 
     /**
-     * finds the ascii value of the character
+     * the character an escape sequence stands for
+     *
+     * @param c the character following the backslash
+     * @return the ascii value, or -1 if the escape is not supported
+     */
+    static int escapeValue(char c) {
+        switch (c) {
+            case 'n':
+                return '\n';
+            case 't':
+                return '\t';
+            case 'r':
+                return '\r';
+            case '0':
+                return 0;
+            case '\\':
+            case '\'':
+            case '\"':
+                return c;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * resolves the escape sequences in the body of a string literal
+     *
+     * @param raw the literal as written in the source, without the quotes
+     * @return the decoded text, or null if raw contains an unsupported escape
+     */
+    static String decodeEscapes(String raw) {
+        int i = raw.indexOf('\\');
+        if (i < 0) {
+            return raw;
+        }
+        StringBuilder sb = new StringBuilder(raw.length());
+        sb.append(raw, 0, i);
+        for (; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '\\') {
+                int e = ++i < raw.length() ? escapeValue(raw.charAt(i)) : -1;
+                if (e < 0) {
+                    return null;
+                }
+                c = (char) e;
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * finds the ascii value of the character, resolving escapes such as '\n' and '\\'
      *
      * @param line the current line in the file
      * @param pos  the current position in the line
      * @return new token object of type integer, and the ascii value
      */
     Token char_lit(int line, int pos) { // handle character literals
+        int start = this.position;
         char c = getNextChar(); // skip opening quote
         int n = (int) c;
-        getNextChar();
+        if (c == '\\') {
+            n = escapeValue(getNextChar());
+            if (n < 0) {
+                error(line, pos, String.format("unknown escape sequence in character literal: \\%c", this.chr));
+            }
+        } else if (c == '\'' || c == '\u0000') {
+            error(line, pos, "empty character literal");
+        }
+        if (getNextChar() != '\'') {
+            error(line, pos, "multi-character or unterminated character literal");
+        }
 
-        return new Token(TokenType.Integer, "" + n, line, pos);
+        return new Token(TokenType.Integer, "" + n, n, null, start, this.position + 1, line, pos);
     }
 
     /**
      * builds the entire string within the quotation marks
+     * The token value keeps the source text for the .lex output; the decoded text rides along with it
      *
      * @param line the current line the file
      * @param pos  the current position in the line
      * @return new token object with token type string
      */
     Token string_lit(int line, int pos) { // handle string literals
-        String result = "";
+        int start = this.position;
         while (getNextChar() != '\"') {
-            result += chr;
+            if (this.chr == '\\') {
+                getNextChar(); // an escaped quote does not end the string
+            }
+            if (this.chr == '\u0000') {
+                error(line, pos, "EOF while scanning string literal");
+            }
+        }
+        String result = this.s.substring(start + 1, this.position);
+        String decoded = decodeEscapes(result);
+        if (decoded == null) {
+            error(line, pos, "unknown escape sequence in string literal");
         }
-        return new Token(TokenType.String, result, line, pos);
+        return new Token(TokenType.String, result, 0, decoded, start, this.position + 1, line, pos);
     }
 
     /**
@@ -150,11 +315,15 @@ public class Lexer {
             prevChar();
             return new Token(TokenType.Op_divide, "", line, pos);
         } else if (chr == '/') {
-            while (getNextChar() != '\n') {
+            // a line comment ends at the newline, or at the end of input when it is on the last line
+            while (this.chr != '\n' && this.chr != '\u0000') {
                 getNextChar();
             }
         } else {
             while (chr != '/') {
+                if (chr == '\u0000') {
+                    error(line, pos, "EOF in comment");
+                }
                 getNextChar();
             }
         }
@@ -186,29 +355,36 @@ public class Lexer {
      */
     Token identifier_or_integer(int line, int pos) { // handle identifiers and integers
         String text = "";
+        int start = this.position;
         if (isLetter(chr)) {
             while (!Character.isWhitespace(chr)) {
-                text += chr;
                 getNextChar();
                 if (!isLetter(chr) && !isNumber(chr)) {
                     prevChar();
                     break;
                 }
             }
+            text = this.s.substring(start, this.position + 1);
             if (keywords.containsKey(text)) {
                 return new Token(keywords.get(text), text, line, pos);
             } else {
                 return new Token(TokenType.Identifier, text, line, pos);
             }
         } else if (isNumber(chr)) {
+            long value = 0;
             while (!Character.isWhitespace(chr)) {
-                text += chr;
+                value = value * 10 + (chr - '0');
+                if (value > Integer.MAX_VALUE) {
+                    error(line, pos, "integer literal out of range");
+                }
                 getNextChar();
                 if (!isNumber(chr)) {
                     prevChar();
                     break;
                 }
             }
+            text = this.s.substring(start, this.position + 1);
+            return new Token(TokenType.Integer, text, (int) value, null, start, this.position + 1, line, pos);
         }
         return new Token(TokenType.Integer, text, line, pos);
     }
@@ -346,17 +522,55 @@ public class Lexer {
     }
 
     String printTokens() {
-        Token t;
         StringBuilder sb = new StringBuilder();
-        while ((t = getToken()).tokentype != TokenType.End_of_input) {
-            getNextChar();
-            sb.append(t);
+        appendTokens(sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * scans the rest of the source, appending one .lex line per token
+     *
+     * @param sb   the builder receiving the .lex text
+     * @param echo whether to also print each token to stdout, as the command line tools do
+     */
+    void appendTokens(StringBuilder sb, boolean echo) {
+        Token t;
+        while ((t = nextToken()).tokentype != TokenType.End_of_input) {
+            t.appendTo(sb);
             sb.append("\n");
+            if (echo) {
+                System.out.println(t);
+            }
+        }
+        t.appendTo(sb);
+        if (echo) {
             System.out.println(t);
         }
-        sb.append(t);
-        System.out.println(t);
-        return sb.toString();
+    }
+
+    /**
+     * scans one token and steps past it
+     *
+     * @return the next token; End_of_input once the source is exhausted
+     */
+    Token nextToken() {
+        Token t = getToken();
+        if (t.tokentype != TokenType.End_of_input) {
+            getNextChar();
+        }
+        this.tokenCount++;
+        this.budget.checkTokens(this.tokenCount, t.line, t.pos);
+        if ((this.tokenCount & (CompileBudget.CHECK_INTERVAL - 1)) == 0) {
+            this.budget.checkTime(t.line, t.pos);
+        }
+        return t;
+    }
+
+    /**
+     * @return the number of tokens produced so far, including End_of_input
+     */
+    int getTokenCount() {
+        return this.tokenCount;
     }
 
     /**
@@ -367,16 +581,87 @@ public class Lexer {
      */
     static void outputToFile(String result, String fileName) {
         try {
-            FileWriter myWriter = new FileWriter("src/main/resources/myLexed" +
-                    fileName.substring(0, fileName.lastIndexOf(".")) + ".lex");
-            myWriter.write(result);
-            myWriter.close();
+            PackFile.Writer pack = PackFile.current();
+            if (pack != null) {
+                pack.add(outputFile(fileName).getName(), result);
+            } else {
+                FileWriter myWriter = new FileWriter(outputFile(fileName));
+                myWriter.write(result);
+                myWriter.close();
+            }
             System.out.println("Successfully wrote to the file.");
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * @param fileName source file name under src/main/resources
+     * @return the .lex file outputToFile writes for it
+     */
+    static File outputFile(String fileName) {
+        return new File("src/main/resources/myLexed" + fileName.substring(0, fileName.lastIndexOf(".")) + ".lex");
+    }
+
+    /**
+     * reads a source file the way the lexer expects it: a leading space, every line terminated by '\n',
+     * and trailing blank lines dropped. Uses a BufferedReader instead of Scanner to keep regex off the startup path
+     *
+     * @param f the source file
+     * @return the source text handed to the Lexer
+     * @throws IOException if the file cannot be read
+     */
+    static String readSource(File f) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(f))) {
+            return readSource(reader);
+        }
+    }
+
+    /**
+     * prepares program text that is already in memory exactly as {@link #readSource(File)} would
+     *
+     * @param text the raw program text
+     * @return the source text handed to the Lexer
+     */
+    static String prepareSource(String text) {
+        StringBuilder source = new StringBuilder(text.length() + 2).append(' ');
+        int end = source.length();
+        int i = 0;
+        while (i < text.length()) {
+            int lineStart = i;
+            boolean blank = true;
+            char c;
+            while (i < text.length() && (c = text.charAt(i)) != '\n' && c != '\r') {
+                blank &= Character.isWhitespace(c);
+                i++;
+            }
+            source.append(text, lineStart, i).append('\n');
+            if (!blank) {
+                end = source.length();
+            }
+            if (i < text.length() && text.charAt(i) == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                i++;
+            }
+            i++;
+        }
+        source.setLength(end);
+        return source.toString();
+    }
+
+    private static String readSource(BufferedReader reader) throws IOException {
+        StringBuilder source = new StringBuilder(" ");
+        int end = source.length();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            source.append(line).append('\n');
+            if (!line.isBlank()) {
+                end = source.length();
+            }
+        }
+        source.setLength(end);
+        return source.toString();
+    }
+
     public static void main(String[] args) {
         //Array list of each file to be used as input
         ArrayList<String> files = new ArrayList<>();
@@ -392,23 +677,53 @@ public class Lexer {
             files.add("hello.t");
         }
 
+        // a bad file is reported and the rest are still lexed; the exit status says whether any failed
+        boolean failed = false;
         for (String fileName : files) {
             try {
-                File f = new File("src/main/resources/" + fileName);
-                Scanner s = new Scanner(f);
-                String source = " ";
-                String result = " ";
-                while (s.hasNext()) {
-                    source += s.nextLine() + "\n";
-                }
-                Lexer l = new Lexer(source);
-                result = l.printTokens();
-
-                outputToFile(result, fileName);
-
-            } catch (FileNotFoundException e) {
-                error(-1, -1, "Exception: " + e.getMessage());
+                lexFile(fileName, CompileBudget.defaults().start());
+            } catch (Exception e) {
+                System.out.println(CompileException.diagnostic(e));
+                failed = true;
             }
         }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * lexes one source file into its .lex; a failure is thrown to the caller, which decides whether the
+     * rest of its batch still runs
+     *
+     * @param fileName name of the source file in resources
+     * @param budget   the limits this compile runs under, as returned by CompileBudget.start(); Main hands the
+     *                 same budget on to Parser.parseFile so the deadline covers the whole compile
+     * @throws CompileException on a syntax error or an exceeded budget
+     * @throws IOException       if the source cannot be read or the .lex written
+     */
+    static void lexFile(String fileName, CompileBudget budget) throws IOException {
+        File f = new File("src/main/resources/" + fileName);
+        budget.checkSource(f.length());
+        BuildManifest manifest = BuildManifest.current();
+        if (manifest != null && manifest.isUpToDate(f, outputFile(fileName))) {
+            return;
+        }
+        CompileStats.Phase phase = CompileStats.begin(CompileStats.Stage.READ_SOURCE, fileName);
+        String source = readSource(f);
+        phase.end(f.length(), 0, 0, 0);
+
+        String result = " ";
+        phase = CompileStats.begin(CompileStats.Stage.LEX, fileName);
+        Lexer l = new Lexer(source, budget);
+        result = l.printTokens();
+        phase.end(source.length(), l.getTokenCount(), 0, 0);
+
+        phase = CompileStats.begin(CompileStats.Stage.EMIT_LEX, fileName);
+        outputToFile(result, fileName);
+        phase.end(result.length(), l.getTokenCount(), 0, 0);
+        if (manifest != null) {
+            manifest.record(f, outputFile(fileName));
+        }
     }
 }
\ No newline at end of file
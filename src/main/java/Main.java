@@ -1,24 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Main class runs Lexer and Parser end-to-end
+ * Pass --stats to print a per-file and aggregate timing/throughput summary at the end
+ * Pass --incremental to skip files whose .lex/.par outputs are current (see BuildManifest)
+ * Pass --pack <file> to write every .lex/.par into one pack file instead of loose files (see PackFile)
+ * Pass --share-nodes to hash-cons the ASTs (see NodeInterner) and print how many nodes were shared
+ * Pass --budget <limits> to compile every program under a deadline and size limits shared by its lex and parse (see CompileBudget)
+ * A file that fails is reported and the others still compile; the exit status is 1 if any file failed
  */
 public class Main {
 
-    public static void main(String[] args) {
-        String[] commandLineArgs = new String[1];
+    public static void main(String[] args) throws IOException {
+        BuildManifest manifest = null;
+        File pack = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--stats")) {
+                CompileStats.enable();
+            } else if (arg.equals("--incremental")) {
+                manifest = BuildManifest.enable();
+            } else if (arg.equals("--share-nodes")) {
+                NodeInterner.enable();
+            } else if (arg.equals("--pack")) {
+                if (i + 1 == args.length) {
+                    System.out.println("--pack needs the path of the pack file to write");
+                    System.exit(1);
+                }
+                pack = new File(args[++i]);
+            } else if (arg.equals("--budget")) {
+                if (i + 1 == args.length) {
+                    System.out.println("--budget needs limits such as deadline=5s,tokens=1000000");
+                    System.exit(1);
+                }
+                try {
+                    CompileBudget.setDefaults(CompileBudget.parse(args[++i]));
+                } catch (IllegalArgumentException e) {
+                    System.out.println("--budget " + args[i] + ": " + e.getMessage());
+                    System.exit(1);
+                }
+            }
+        }
+        if (pack != null) {
+            if (manifest != null) {
+                System.out.println("--incremental tracks loose output files and cannot be combined with --pack");
+                System.exit(1);
+            }
+            PackFile.enable(pack);
+        }
         String[] lexerFileNames = {"99bottles.c", "count.c", "file1.c", "file2.c", "fizzbuzz.c", "loop.py", "hello.t"};
-        String[] parserFileNames = {"myLexed99bottles.lex", "myLexedcount.lex",
-            "myLexedfizzbuzz.lex", "myLexedloop.lex", "myLexedhello.lex", "myLexedprime.lex", "hello.lex", "count.lex",
-            "loop.lex", "myLexedfile1.lex", "myLexedfile2.lex"};
+        String[] parserFileNames = {"myLexedprime.lex", "hello.lex", "count.lex", "loop.lex"};
 
 
+        // a file that fails is reported and skipped, so one bad input does not hide the results of the rest
+        List<String> failures = new ArrayList<>();
+
+        // each program is lexed and parsed under one budget, so the deadline is not restarted for the parse
         for (String fileName : lexerFileNames) {
-            commandLineArgs[0] = fileName;
-            Lexer.main(commandLineArgs);
+            CompileBudget budget = CompileBudget.defaults().start();
+            try {
+                Lexer.lexFile(fileName, budget);
+                Parser.parseFile("myLexed" + CompileStats.program(fileName) + ".lex", budget);
+            } catch (Exception e) {
+                failures.add(fileName + ": " + CompileException.diagnostic(e));
+                System.out.println(failures.get(failures.size() - 1));
+            }
         }
 
         for (String fileName : parserFileNames) {
-            commandLineArgs[0] = fileName;
-            Parser.main(commandLineArgs);
+            try {
+                Parser.parseFile(fileName, CompileBudget.defaults().start());
+            } catch (Exception e) {
+                failures.add(fileName + ": " + CompileException.diagnostic(e));
+                System.out.println(failures.get(failures.size() - 1));
+            }
+        }
+
+        if (pack != null) {
+            PackFile.disable();
+        }
+        if (CompileStats.snapshot().size() > 0) {
+            CompileStats.printReport();
+        }
+        if (NodeInterner.enabled()) {
+            System.out.println(NodeInterner.totalSummary());
+        }
+        if (manifest != null) {
+            manifest.save();
+            System.out.println(manifest.summary());
+        }
+        if (!failures.isEmpty()) {
+            System.out.println(failures.size() + " of " + (lexerFileNames.length + parserFileNames.length)
+                    + " files failed:");
+            for (String failure : failures) {
+                System.out.println("  " + failure);
+            }
+            System.exit(1);
         }
     }
 }
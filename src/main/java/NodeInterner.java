@@ -0,0 +1,219 @@
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hash-consing factory for Parser.Node.
+ * A Parser given an interner with setInterner builds its tree through {@link #intern}, which returns one
+ * canonical node for every structurally identical subtree, so repeated expressions and statements such as
+ * {@code i = i + 1;} are built once and shared. Because children are canonical already, a lookup only
+ * compares the new node's own fields and its children by identity, and within one generation of the
+ * table {@code a == b} holds exactly when the subtrees are equal, which makes node identity a cheap
+ * equality and memo key for later passes.
+ * <p>
+ * The table is bounded: once it holds {@link #maxEntries} nodes it is flushed and a new generation
+ * starts. Nodes from before a flush stay valid, they just are no longer handed out again, so identity
+ * still implies equality but equal subtrees from different generations may be distinct objects.
+ * Nodes are never mutated after they are made, which is what makes sharing safe; the tree becomes a
+ * DAG, so passes that count or rewrite nodes see shared subtrees once per use.
+ * An interner is not thread-safe: each one belongs to a single parser, as in CompilerSession or one
+ * file of Parser.main. {@link #release()} drops the table after a compile, so the canonical nodes live
+ * only as long as the trees that use them, and adds the counts to process-wide totals for Main --share-nodes.
+ * A streaming Parser.parse(Consumer) releases it after every top-level statement instead, so sharing is
+ * scoped to one statement and the table never outgrows the largest statement of the file.
+ */
+class NodeInterner {
+    static final int DEFAULT_MAX_ENTRIES = 1 << 20;
+
+    /**
+     * Estimated size of one Parser.Node with compressed oops: 12 byte header, six 4 byte fields, padded.
+     */
+    static final int NODE_BYTES = 40;
+
+    private final int maxEntries;
+    private Parser.Node[] table = new Parser.Node[1 << 10];
+    private int[] hashes = new int[1 << 10];
+    private int size;
+    private long requested;
+    private long created;
+    private int flushes;
+
+    private static volatile boolean enabled;
+    private static final LongAdder totalRequested = new LongAdder();
+    private static final LongAdder totalCreated = new LongAdder();
+    private static final LongAdder totalFlushes = new LongAdder();
+
+    NodeInterner() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries canonical nodes kept before the table is flushed
+     */
+    NodeInterner(int maxEntries) {
+        this.maxEntries = Math.max(1, maxEntries);
+    }
+
+    /**
+     * makes Parser.main give every file its own interner, as Main --share-nodes asks
+     */
+    static void enable() {
+        enabled = true;
+    }
+
+    static void disable() {
+        enabled = false;
+    }
+
+    static boolean enabled() {
+        return enabled;
+    }
+
+    /**
+     * Forgets the canonical nodes at the end of a compile and adds this interner's counts to the totals.
+     * Trees built so far stay valid; the interner can be used again and starts from an empty table.
+     */
+    void release() {
+        totalRequested.add(this.requested);
+        totalCreated.add(this.created);
+        totalFlushes.add(this.flushes);
+        this.requested = 0;
+        this.created = 0;
+        this.flushes = 0;
+        if (this.table.length == 1 << 10) {
+            // a streaming parse releases after every statement, so the initial table is reused
+            Arrays.fill(this.table, null);
+        } else {
+            this.table = new Parser.Node[1 << 10];
+            this.hashes = new int[1 << 10];
+        }
+        this.size = 0;
+    }
+
+    /**
+     * @return canonical nodes currently held by the table
+     */
+    int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the canonical node with these fields, made on first request
+     */
+    Parser.Node intern(Parser.NodeType nt, Parser.Node left, Parser.Node right, String value, int number,
+                       String decoded) {
+        this.requested++;
+        int hash = hash(nt, left, right, value, number, decoded);
+        int mask = this.table.length - 1;
+        int i = hash & mask;
+        for (Parser.Node n = this.table[i]; n != null; n = this.table[i]) {
+            if (this.hashes[i] == hash && n.nt == nt && n.left == left && n.right == right && n.number == number
+                    && Objects.equals(n.value, value) && Objects.equals(n.decoded, decoded)) {
+                return n;
+            }
+            i = (i + 1) & mask;
+        }
+
+        Parser.Node n = new Parser.Node(nt, left, right, value);
+        n.number = number;
+        n.decoded = decoded;
+        this.created++;
+        if (this.size == this.maxEntries) {
+            flush();
+            i = hash & (this.table.length - 1);
+        } else if ((this.size + 1) * 4 > this.table.length * 3) {
+            grow();
+            i = hash & (this.table.length - 1);
+            while (this.table[i] != null) {
+                i = (i + 1) & (this.table.length - 1);
+            }
+        }
+        this.table[i] = n;
+        this.hashes[i] = hash;
+        this.size++;
+        return n;
+    }
+
+    private static int hash(Parser.NodeType nt, Parser.Node left, Parser.Node right, String value, int number,
+                            String decoded) {
+        int h = nt == null ? 0 : nt.ordinal();
+        h = h * 31 + System.identityHashCode(left);
+        h = h * 31 + System.identityHashCode(right);
+        h = h * 31 + (value == null ? 0 : value.hashCode());
+        h = h * 31 + number;
+        h = h * 31 + (decoded == null ? 0 : decoded.hashCode());
+        return h ^ (h >>> 16);
+    }
+
+    private void grow() {
+        Parser.Node[] oldTable = this.table;
+        int[] oldHashes = this.hashes;
+        this.table = new Parser.Node[oldTable.length * 2];
+        this.hashes = new int[oldTable.length * 2];
+        int mask = this.table.length - 1;
+        for (int j = 0; j < oldTable.length; j++) {
+            if (oldTable[j] != null) {
+                int i = oldHashes[j] & mask;
+                while (this.table[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                this.table[i] = oldTable[j];
+                this.hashes[i] = oldHashes[j];
+            }
+        }
+    }
+
+    private void flush() {
+        Arrays.fill(this.table, null);
+        this.size = 0;
+        this.flushes++;
+    }
+
+    /**
+     * @return make_node/make_leaf calls served so far
+     */
+    long requested() {
+        return this.requested;
+    }
+
+    /**
+     * @return nodes actually allocated so far
+     */
+    long created() {
+        return this.created;
+    }
+
+    /**
+     * @return how often the bounded table was flushed
+     */
+    int flushes() {
+        return this.flushes;
+    }
+
+    /**
+     * @return estimated heap bytes saved by sharing instead of allocating a node per request
+     */
+    long bytesSaved() {
+        return (this.requested - this.created) * NODE_BYTES;
+    }
+
+    /**
+     * @return a one-line summary of requested vs allocated nodes and the estimated saving
+     */
+    String summary() {
+        return summary(this.requested, this.created, this.flushes);
+    }
+
+    /**
+     * @return the summary over every interner released so far
+     */
+    static String totalSummary() {
+        return summary(totalRequested.sum(), totalCreated.sum(), totalFlushes.intValue());
+    }
+
+    private static String summary(long requested, long created, int flushes) {
+        return String.format("shared AST nodes: %d requested, %d allocated (%.1f%% shared), ~%d KB saved, %d flushes",
+                requested, created, requested == 0 ? 0.0 : 100.0 * (requested - created) / requested,
+                (requested - created) * NODE_BYTES / 1024, flushes);
+    }
+}
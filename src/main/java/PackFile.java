@@ -0,0 +1,304 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-file container for .lex/.par outputs, so batch runs create one file instead of one per input.
+ * <p>
+ * Layout: the 8 byte magic, the entries' bytes back to back, then the index, then a 16 byte footer
+ * holding the index offset and the magic again. The index is an entry count followed, per entry, by the
+ * UTF-8 name (2 byte length, then the bytes), the offset and the length. A pack whose footer is missing
+ * was not closed and cannot be read.
+ * <p>
+ * {@link Writer} may be shared by threads: every add reserves its byte range with one atomic add and
+ * then writes it with a positional write, so entries never interleave. Adding a name twice keeps the
+ * last entry. {@link Reader} maps the pack into memory and serves entries by name.
+ * Main --pack &lt;file&gt; sends Lexer and Parser output here; {@code PackFile list|extract} gets it back out.
+ */
+class PackFile {
+    private static final long MAGIC = 0x4d43504b30303031L; // "MCPK0001"
+    private static final int FOOTER_BYTES = 16;
+
+    private static volatile Writer enabled;
+
+    /**
+     * opens a pack that Lexer.outputToFile and Parser.main write to instead of loose files
+     *
+     * @return the writer; close it with {@link #disable()}
+     */
+    static Writer enable(File pack) throws IOException {
+        enabled = new Writer(pack);
+        return enabled;
+    }
+
+    /**
+     * closes the enabled pack, writing its index, and goes back to loose files
+     */
+    static void disable() throws IOException {
+        Writer w = enabled;
+        enabled = null;
+        if (w != null) {
+            w.close();
+        }
+    }
+
+    /**
+     * @return the pack enabled by --pack, or null when outputs go to loose files
+     */
+    static Writer current() {
+        return enabled;
+    }
+
+    /**
+     * Appends named entries to a pack; thread-safe.
+     */
+    static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final AtomicLong end = new AtomicLong(8);
+        private final Map<String, long[]> index = new ConcurrentHashMap<>();
+        private final List<String> order = new ArrayList<>();
+        private boolean closed;
+
+        Writer(File pack) throws IOException {
+            this.channel = FileChannel.open(pack.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ, StandardOpenOption.TRUNCATE_EXISTING);
+            writeFully(ByteBuffer.allocate(8).putLong(0, MAGIC), 0);
+        }
+
+        /**
+         * adds text encoded the way FileWriter would write it, so extracted files match loose ones
+         */
+        void add(String name, CharSequence text) throws IOException {
+            add(name, Charset.defaultCharset().encode(CharBuffer.wrap(text)));
+        }
+
+        void add(String name, ByteBuffer bytes) throws IOException {
+            long length = bytes.remaining();
+            long offset = this.end.getAndAdd(length);
+            writeFully(bytes, offset);
+            publish(name, offset, length);
+        }
+
+        /**
+         * copies a whole file in as one entry, for outputs too large to hold in memory
+         */
+        void add(String name, File file) throws IOException {
+            try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long length = in.size();
+                long offset = this.end.getAndAdd(length);
+                ByteBuffer buf = ByteBuffer.allocate((int) Math.min(length, 1 << 16));
+                long done = 0;
+                while (done < length) {
+                    buf.clear();
+                    int n = in.read(buf, done);
+                    if (n < 0) {
+                        throw new IOException(file + " shrank while being packed");
+                    }
+                    buf.flip();
+                    writeFully(buf, offset + done);
+                    done += n;
+                }
+                publish(name, offset, length);
+            }
+        }
+
+        private synchronized void publish(String name, long offset, long length) {
+            if (this.index.put(name, new long[]{offset, length}) == null) {
+                this.order.add(name);
+            }
+        }
+
+        private void writeFully(ByteBuffer bytes, long offset) throws IOException {
+            while (bytes.hasRemaining()) {
+                offset += this.channel.write(bytes, offset);
+            }
+        }
+
+        /**
+         * @return true if an entry of that name has been added
+         */
+        boolean contains(String name) {
+            return this.index.containsKey(name);
+        }
+
+        /**
+         * @return the names added so far, in the order they were first added
+         */
+        synchronized List<String> names() {
+            return new ArrayList<>(this.order);
+        }
+
+        /**
+         * reads back an entry that was already added, before the pack is closed
+         */
+        byte[] read(String name) throws IOException {
+            long[] entry = this.index.get(name);
+            if (entry == null) {
+                throw new IOException("no entry " + name);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(Math.toIntExact(entry[1]));
+            long offset = entry[0];
+            while (buf.hasRemaining()) {
+                int n = this.channel.read(buf, offset + buf.position());
+                if (n < 0) {
+                    throw new IOException("pack truncated at " + name);
+                }
+            }
+            return buf.array();
+        }
+
+        /**
+         * writes the index and footer; entries added afterwards are lost
+         */
+        @Override
+        public synchronized void close() throws IOException {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            long indexOffset = this.end.get();
+            List<byte[]> names = new ArrayList<>();
+            int size = 4;
+            for (String name : this.order) {
+                byte[] b = name.getBytes(StandardCharsets.UTF_8);
+                names.add(b);
+                size += 2 + b.length + 16;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(size + FOOTER_BYTES);
+            buf.putInt(this.order.size());
+            for (int i = 0; i < this.order.size(); i++) {
+                long[] entry = this.index.get(this.order.get(i));
+                buf.putShort((short) names.get(i).length).put(names.get(i)).putLong(entry[0]).putLong(entry[1]);
+            }
+            buf.putLong(indexOffset).putLong(MAGIC).flip();
+            writeFully(buf, indexOffset);
+            this.channel.truncate(indexOffset + size + FOOTER_BYTES);
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Random access to the entries of a closed pack through a memory mapping.
+     */
+    static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final MappedByteBuffer map;
+        private final Map<String, long[]> index = new LinkedHashMap<>();
+
+        Reader(File pack) throws IOException {
+            this.channel = FileChannel.open(pack.toPath(), StandardOpenOption.READ);
+            long size = this.channel.size();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+            if (size < 8 + FOOTER_BYTES || this.channel.read(footer, size - FOOTER_BYTES) != FOOTER_BYTES
+                    || footer.getLong(8) != MAGIC) {
+                this.channel.close();
+                throw new IOException(pack + " is not a closed pack file");
+            }
+            long indexOffset = footer.getLong(0);
+            // entries past 2 GB are mapped one at a time in get(); the common case maps the file once
+            this.map = size <= Integer.MAX_VALUE ? this.channel.map(FileChannel.MapMode.READ_ONLY, 0, size) : null;
+            ByteBuffer idx = this.channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    size - FOOTER_BYTES - indexOffset);
+            int count = idx.getInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[idx.getShort() & 0xffff];
+                idx.get(name);
+                this.index.put(new String(name, StandardCharsets.UTF_8), new long[]{idx.getLong(), idx.getLong()});
+            }
+        }
+
+        /**
+         * @return entry names, in the order they were first added
+         */
+        List<String> names() {
+            return new ArrayList<>(this.index.keySet());
+        }
+
+        /**
+         * @return a read-only view of an entry, or null if the pack has none of that name
+         */
+        ByteBuffer get(String name) throws IOException {
+            long[] entry = this.index.get(name);
+            if (entry == null) {
+                return null;
+            }
+            if (this.map != null) {
+                return this.map.slice((int) entry[0], (int) entry[1]).asReadOnlyBuffer();
+            }
+            return this.channel.map(FileChannel.MapMode.READ_ONLY, entry[0], entry[1]);
+        }
+
+        /**
+         * writes an entry out as a loose file under the directory; names that would resolve outside it,
+         * such as ../x or an absolute path, are rejected
+         *
+         * @return the file written
+         */
+        File extract(String name, File dir) throws IOException {
+            ByteBuffer b = get(name);
+            if (b == null) {
+                throw new IOException("no entry " + name);
+            }
+            Path root = dir.toPath().toAbsolutePath().normalize();
+            Path dest = root.resolve(name).normalize();
+            if (!dest.startsWith(root) || dest.equals(root)) {
+                throw new IOException("entry " + name + " would be extracted outside " + dir);
+            }
+            Files.createDirectories(dest.getParent());
+            try (FileChannel out = new FileOutputStream(dest.toFile()).getChannel()) {
+                while (b.hasRemaining()) {
+                    out.write(b);
+                }
+            }
+            return dest.toFile();
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.channel.close();
+        }
+    }
+
+    /**
+     * Usage: PackFile list &lt;pack&gt; | PackFile extract &lt;pack&gt; &lt;directory&gt; [names...]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("list") || (args[0].equals("extract") && args.length >= 3))) {
+            System.out.println("usage: PackFile list <pack> | PackFile extract <pack> <directory> [names...]");
+            System.exit(1);
+        }
+        try (Reader r = new Reader(new File(args[1]))) {
+            if (args[0].equals("list")) {
+                for (String name : r.names()) {
+                    System.out.println(r.index.get(name)[1] + "\t" + name);
+                }
+                return;
+            }
+            File dir = new File(args[2]);
+            dir.mkdirs();
+            List<String> names = new ArrayList<>();
+            for (int i = 3; i < args.length; i++) {
+                names.add(args[i]);
+            }
+            for (String name : names.isEmpty() ? r.names() : names) {
+                r.extract(name, dir);
+            }
+        }
+    }
+}
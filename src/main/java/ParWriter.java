@@ -0,0 +1,152 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+/**
+ * Streaming .par printer for {@link Parser#parse(Consumer)}.
+ * Each top-level statement is printed as soon as the parser completes it and then dropped, so peak
+ * memory depends on the largest statement rather than the whole program.
+ * <p>
+ * The .par of a whole program starts with one "Sequence" line per statement and the ";" that ends the
+ * left-deep chain, and that count is only known at the end. Statements are therefore written to a temp
+ * file first; {@link #writeTo(File)} then writes the framing followed by the statements, so the output is
+ * byte-identical to printAST of the tree parse() would have built.
+ */
+class ParWriter implements Consumer<Parser.Node>, Closeable {
+    private static final int RETAIN_LIMIT = 1 << 16;
+
+    private final Parser parser;
+    private final boolean echo;
+    private final File body;
+    private final Writer out;
+    private StringBuilder sb = new StringBuilder();
+    private int statements;
+    private int nodes;
+
+    /**
+     * @param parser the parser producing the statements, used for its printer
+     * @param echo   also print every line to stdout when the file is written, as printAST does
+     */
+    ParWriter(Parser parser, boolean echo) throws IOException {
+        this.parser = parser;
+        this.echo = echo;
+        // deleted by close(); deleteOnExit is only the fallback when that fails
+        this.body = File.createTempFile("statements", ".par");
+        try {
+            this.out = new BufferedWriter(new FileWriter(this.body));
+        } catch (IOException e) {
+            this.body.delete();
+            throw e;
+        }
+    }
+
+    /**
+     * prints one completed top-level statement to the temp file
+     */
+    @Override
+    public void accept(Parser.Node stmt) {
+        this.sb.setLength(0);
+        this.parser.appendAST(stmt, this.sb, false);
+        boolean lineStart = true;
+        for (int i = 0; i < this.sb.length(); i++) {
+            char c = this.sb.charAt(i);
+            // every node prints one line and every missing child prints ";"
+            if (lineStart && c != ';') {
+                this.nodes++;
+            }
+            lineStart = c == '\n';
+        }
+        try {
+            this.out.append(this.sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.statements++;
+        this.nodes++;
+        if (this.sb.capacity() > RETAIN_LIMIT) {
+            this.sb = new StringBuilder();
+        }
+    }
+
+    /**
+     * @return top-level statements received so far
+     */
+    int statements() {
+        return this.statements;
+    }
+
+    /**
+     * @return AST nodes received so far, counting the Sequence node each statement hangs off
+     */
+    int nodes() {
+        return this.nodes;
+    }
+
+    /**
+     * writes the complete .par: the Sequence framing, then every statement in order
+     *
+     * @param par the output file
+     * @return the number of chars written
+     */
+    long writeTo(File par) throws IOException {
+        this.out.close();
+        long written = 0;
+        try (Writer w = new BufferedWriter(new FileWriter(par));
+             BufferedReader reader = new BufferedReader(new FileReader(this.body))) {
+            for (int i = 0; i < this.statements; i++) {
+                w.write("Sequence\n");
+                if (this.echo) {
+                    System.out.println(Parser.padRight("Sequence", 14));
+                }
+            }
+            w.write(";\n");
+            if (this.echo) {
+                System.out.println(";");
+            }
+            written = this.statements * 9L + 2;
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                w.write(line);
+                w.write('\n');
+                written += line.length() + 1;
+                if (this.echo) {
+                    System.out.println(echoLine(line));
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * the stdout form printAST gives a .par line: the node name padded to 14 columns, then " value" for leaves
+     */
+    private static String echoLine(String line) {
+        if (line.equals(";")) {
+            return line;
+        }
+        int space = line.indexOf(' ');
+        if (space < 0) {
+            return Parser.padRight(line, 14);
+        }
+        return Parser.padRight(line.substring(0, space), 14) + line.substring(space);
+    }
+
+    /**
+     * deletes the temp file
+     */
+    @Override
+    public void close() throws IOException {
+        this.out.close();
+        if (!this.body.delete()) {
+            this.body.deleteOnExit();
+        }
+    }
+}
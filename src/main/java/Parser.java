@@ -1,8 +1,12 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.*;
+import java.util.function.Consumer;
 
 
 /**
@@ -11,14 +15,21 @@ import java.util.*;
  * @author (updated by) Jared Scarr
  */
 class Parser {
-    private final List<Token> source;
+    private List<Token> source;
     private Token token;
     private int position;
+    private int depth;
+    private int maxDepth;
+    private int nodes;
+    private CompileBudget budget = CompileBudget.UNLIMITED;
+    private NodeInterner interner;
 
     static class Node {
         public NodeType nt;
         public Node left, right;
         public String value;
+        public int number;      // nd_Integer leaves: the value, decoded once by readTokens
+        public String decoded;  // nd_String leaves: the text with escapes resolved
 
         Node() {
             this.nt = null;
@@ -39,12 +50,24 @@ class Parser {
         }
 
         public static Node make_node(NodeType nodetype, Node left) {
-            return new Node(nodetype, left, null, "");
+            return make_node(nodetype, left, null);
         }
 
         public static Node make_leaf(NodeType nodetype, String value) {
             return new Node(nodetype, null, null, value);
         }
+
+        public static Node make_leaf(NodeType nodetype, String value, int number) {
+            Node leaf = new Node(nodetype, null, null, value);
+            leaf.number = number;
+            return leaf;
+        }
+
+        public static Node make_leaf(NodeType nodetype, String value, String decoded) {
+            Node leaf = new Node(nodetype, null, null, value);
+            leaf.decoded = decoded;
+            return leaf;
+        }
     }
 
     static class Token {
@@ -52,6 +75,8 @@ class Parser {
         public String value;
         public int line;
         public int pos;
+        public int number;      // Integer tokens: the literal value
+        public String decoded;  // String tokens: the text between the quotes, escapes resolved
 
         Token(TokenType token, String value, int line, int pos) {
             this.tokentype = token;
@@ -161,11 +186,16 @@ class Parser {
      * @param msg  - message.
      */
     static void error(int line, int pos, String msg) {
-        if (line > 0 && pos > 0) {
-            System.out.printf("%s in line %d, pos %d\n", msg, line, pos);
-        } else {
-            System.out.println(msg);
-        }
+        throw new CompileException(CompileException.Kind.SYNTAX, msg, line, pos);
+    }
+
+    /**
+     * Print a diagnostic and exit with status 1; only for the command line entry points.
+     *
+     * @param msg - message.
+     */
+    static void exit(String msg) {
+        System.out.println(msg);
         System.exit(1);
     }
 
@@ -175,9 +205,52 @@ class Parser {
      * @param source - list of tokens.
      */
     Parser(List<Token> source) {
+        this(source, CompileBudget.UNLIMITED);
+    }
+
+    /**
+     * Constructor for a parse under resource limits.
+     *
+     * @param source - list of tokens.
+     * @param budget - limits of this compile, as returned by CompileBudget.start().
+     */
+    Parser(List<Token> source, CompileBudget budget) {
+        reset(source, budget);
+    }
+
+    /**
+     * Point the parser at a new token list so one instance can be reused across compiles.
+     *
+     * @param source - list of tokens.
+     */
+    void reset(List<Token> source) {
+        reset(source, this.budget);
+    }
+
+    /**
+     * Point the parser at a new token list under a new budget.
+     *
+     * @param source - list of tokens.
+     * @param budget - limits of this compile, as returned by CompileBudget.start().
+     */
+    void reset(List<Token> source, CompileBudget budget) {
+        budget.checkTokens(source.size(), -1, -1);
+        this.budget = budget;
         this.source = source;
         this.token = null;
         this.position = 0;
+        this.depth = 0;
+        this.maxDepth = 0;
+        this.nodes = 0;
+    }
+
+    /**
+     * Makes the following parses build their trees through an interner, so equal subtrees are shared.
+     *
+     * @param interner - the interner, confined to this parser's thread; null to allocate every node.
+     */
+    void setInterner(NodeInterner interner) {
+        this.interner = interner;
     }
 
     /**
@@ -187,6 +260,9 @@ class Parser {
      */
     Token getNextToken() {
         this.token = this.source.get(this.position++);
+        if ((this.position & (CompileBudget.CHECK_INTERVAL - 1)) == 0) {
+            this.budget.checkTime(this.token.line, this.token.pos);
+        }
         return this.token;
     }
 
@@ -201,6 +277,7 @@ class Parser {
         Node node = null;
         TokenType op = null;
         int opPrecedence = 0;
+        enter();
 
         if (this.token.tokentype == TokenType.LeftParen) {
             result = parenExpr();
@@ -209,18 +286,18 @@ class Parser {
             getNextToken();
             node = expr(TokenType.Op_negate.getPrecedence());
             if (op == TokenType.Op_negate) {
-                result = Node.make_node(NodeType.nd_Negate, node);
+                result = node(NodeType.nd_Negate, node);
             } else {
                 result = node;
             }
         } else if (this.token.tokentype == TokenType.Op_not) {
             getNextToken();
-            result = Node.make_node(NodeType.nd_Not, expr(TokenType.Op_not.getPrecedence()));
+            result = node(NodeType.nd_Not, expr(TokenType.Op_not.getPrecedence()));
         } else if (this.token.tokentype == TokenType.Identifier) {
-            result = Node.make_leaf(NodeType.nd_Ident, this.token.value);
+            result = leaf(NodeType.nd_Ident, this.token.value);
             getNextToken();
         } else if (this.token.tokentype == TokenType.Integer) {
-            result = Node.make_leaf(NodeType.nd_Integer, this.token.value);
+            result = leaf(NodeType.nd_Integer, this.token.value, this.token.number);
             getNextToken();
         } else {
             error(this.token.line, this.token.pos, this.token.value);
@@ -236,8 +313,9 @@ class Parser {
             }
 
             node = expr(opPrecedence);
-            result = Node.make_node(op.node_type, result, node);
+            result = node(op.node_type, result, node);
         }
+        this.depth--;
         return result;
     }
 
@@ -276,6 +354,7 @@ class Parser {
      */
     Node stmt() {
         Node s, s2, t = null, expression, value;
+        enter();
 
         if (this.token.tokentype == TokenType.Keyword_if) {
             getNextToken();
@@ -286,24 +365,24 @@ class Parser {
                 getNextToken();
                 s2 = stmt();
             }
-            t = Node.make_node(NodeType.nd_If, expression, Node.make_node(NodeType.nd_If, s, s2));
+            t = node(NodeType.nd_If, expression, node(NodeType.nd_If, s, s2));
         } else if (this.token.tokentype == TokenType.Keyword_putc) {
             getNextToken();
             expression = parenExpr();
-            t = Node.make_node(NodeType.nd_Prtc, expression);
+            t = node(NodeType.nd_Prtc, expression);
             expect(TokenType.Keyword_putc.name(), TokenType.Semicolon);
         } else if (this.token.tokentype == TokenType.Keyword_print) {
             getNextToken();
             expect(TokenType.Keyword_print.name(), TokenType.LeftParen);
             while (true) {
                 if (this.token.tokentype == TokenType.String) {
-                    expression = Node.make_node(NodeType.nd_Prts, Node.make_leaf(NodeType.nd_String, this.token.value));
+                    expression = node(NodeType.nd_Prts, leaf(NodeType.nd_String, this.token.value, this.token.decoded));
                     getNextToken();
                 } else {
-                    expression = Node.make_node(NodeType.nd_Prti, expr(0));
+                    expression = node(NodeType.nd_Prti, expr(0));
                 }
 
-                t = Node.make_node(NodeType.nd_Sequence, t, expression);
+                t = node(NodeType.nd_Sequence, t, expression);
 
                 if (this.token.tokentype != TokenType.Comma) {
                     break;
@@ -315,21 +394,21 @@ class Parser {
         } else if (this.token.tokentype == TokenType.Semicolon) {
             getNextToken();
         } else if (this.token.tokentype == TokenType.Identifier) {
-            value = Node.make_leaf(NodeType.nd_Ident, this.token.value);
+            value = leaf(NodeType.nd_Ident, this.token.value);
             getNextToken();
             expect(TokenType.Op_assign.name(), TokenType.Op_assign);
             expression = expr(0);
-            t = Node.make_node(NodeType.nd_Assign, value, expression);
+            t = node(NodeType.nd_Assign, value, expression);
             expect(TokenType.Op_assign.name(), TokenType.Semicolon);
         } else if (this.token.tokentype == TokenType.Keyword_while) {
             getNextToken();
             expression = parenExpr();
             s = stmt();
-            t = Node.make_node(NodeType.nd_While, expression, s);
+            t = node(NodeType.nd_While, expression, s);
         } else if (this.token.tokentype == TokenType.LeftBrace) {
             getNextToken();
             while (this.token.tokentype != TokenType.RightBrace && this.token.tokentype != TokenType.End_of_input) {
-                t = Node.make_node(NodeType.nd_Sequence, t, stmt());
+                t = node(NodeType.nd_Sequence, t, stmt());
             }
             expect(TokenType.LeftBrace.name(), TokenType.RightBrace);
         } else if (this.token.tokentype == TokenType.End_of_input) {
@@ -338,9 +417,75 @@ class Parser {
             error(this.token.line, this.token.pos, "Expected start of statement, instead found: " + this.token);
         }
 
+        this.depth--;
         return t;
     }
 
+    /**
+     * Track recursion depth on entry to expr/stmt; callers decrement on return.
+     */
+    private void enter() {
+        if (++this.depth > this.maxDepth) {
+            this.maxDepth = this.depth;
+            this.budget.checkDepth(this.depth, this.token.line, this.token.pos);
+        }
+    }
+
+    private Node counted(Node n) {
+        this.budget.checkNodes(++this.nodes, this.token.line, this.token.pos);
+        return n;
+    }
+
+    private Node node(NodeType nodetype, Node left, Node right) {
+        if (this.interner != null) {
+            return counted(this.interner.intern(nodetype, left, right, "", 0, null));
+        }
+        return counted(Node.make_node(nodetype, left, right));
+    }
+
+    private Node node(NodeType nodetype, Node left) {
+        return node(nodetype, left, null);
+    }
+
+    private Node leaf(NodeType nodetype, String value) {
+        if (this.interner != null) {
+            return counted(this.interner.intern(nodetype, null, null, value, 0, null));
+        }
+        return counted(Node.make_leaf(nodetype, value));
+    }
+
+    private Node leaf(NodeType nodetype, String value, int number) {
+        if (this.interner != null) {
+            return counted(this.interner.intern(nodetype, null, null, value, number, null));
+        }
+        return counted(Node.make_leaf(nodetype, value, number));
+    }
+
+    private Node leaf(NodeType nodetype, String value, String decoded) {
+        if (this.interner != null) {
+            return counted(this.interner.intern(nodetype, null, null, value, 0, decoded));
+        }
+        return counted(Node.make_leaf(nodetype, value, decoded));
+    }
+
+    /**
+     * The parser recurses once per nesting level; input nested deeper than the stack allows fails
+     * like an exceeded depth budget instead of taking the thread down.
+     */
+    private static CompileException tooDeep(Token at) {
+        return new CompileException(CompileException.Kind.DEPTH, "nesting too deep for the parser's stack",
+                at == null ? -1 : at.line, at == null ? -1 : at.pos);
+    }
+
+    /**
+     * Deepest expr/stmt recursion reached so far.
+     *
+     * @return - int
+     */
+    int getMaxDepth() {
+        return this.maxDepth;
+    }
+
     /**
      * Parses token and returns a Node.
      *
@@ -350,11 +495,51 @@ class Parser {
         Node t = null;
         getNextToken();
         while (this.token.tokentype != TokenType.End_of_input) {
-            t = Node.make_node(NodeType.nd_Sequence, t, stmt());
+            t = node(NodeType.nd_Sequence, t, statement());
         }
         return t;
     }
 
+    /**
+     * Parses token by token, handing each top-level statement to the listener as soon as it is complete
+     * instead of chaining them into one tree, so nothing but the current statement is kept.
+     * parse() would return the statements in the same order, each hung off its own nd_Sequence node.
+     * An interner is released after each statement, so subtrees are only shared within one statement
+     * and its table does not grow with the file.
+     *
+     * @param listener - receives every top-level statement, in order.
+     * @return - number of top-level statements.
+     */
+    int parse(Consumer<Node> listener) {
+        int statements = 0;
+        getNextToken();
+        while (this.token.tokentype != TokenType.End_of_input) {
+            Node s = statement();
+            // stands in for the nd_Sequence node parse() would hang the statement off
+            this.budget.checkNodes(++this.nodes, this.token.line, this.token.pos);
+            listener.accept(s);
+            if (this.interner != null) {
+                this.interner.release();
+            }
+            statements++;
+        }
+        return statements;
+    }
+
+    /**
+     * Parses one top-level statement. Only the parser's own recursion is caught here, so a
+     * StackOverflowError thrown by a listener is not mistaken for input nested too deep.
+     *
+     * @return - Node
+     */
+    private Node statement() {
+        try {
+            return stmt();
+        } catch (StackOverflowError e) {
+            throw tooDeep(this.token);
+        }
+    }
+
     /**
      * Print AST.
      *
@@ -363,33 +548,76 @@ class Parser {
      * @return - String representation of AST.
      */
     String printAST(Node t, StringBuilder sb) {
-        if (t == null) {
-            sb.append(";");
-            sb.append("\n");
-            System.out.println(";");
-        } else {
-            sb.append(t.nt);
-            System.out.printf("%-14s", t.nt);
-            if (t.nt == NodeType.nd_Ident || t.nt == NodeType.nd_Integer || t.nt == NodeType.nd_String) {
-                sb.append(" " + t.value);
+        appendAST(t, sb, true);
+        return sb.toString();
+    }
+
+    /**
+     * Append the .par text of an AST.
+     * Walks the tree with an explicit stack, since a block of many statements is one long left-deep
+     * Sequence chain that would overflow the thread stack if printed recursively.
+     *
+     * @param root - Node.
+     * @param sb   - StringBuilder receiving the text.
+     * @param echo - also print each line to stdout, as the command line tools do.
+     */
+    void appendAST(Node root, StringBuilder sb, boolean echo) {
+        // holds null for a missing child, which prints as ";"
+        List<Node> pending = new ArrayList<>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Node t = pending.remove(pending.size() - 1);
+            if (t == null) {
+                sb.append(";");
                 sb.append("\n");
-                System.out.println(" " + t.value);
+                if (echo) {
+                    System.out.println(";");
+                }
             } else {
-                sb.append("\n");
-                System.out.println();
-                printAST(t.left, sb);
-                printAST(t.right, sb);
+                sb.append(t.nt);
+                if (echo) {
+                    System.out.print(padRight(t.nt.toString(), 14));
+                }
+                if (t.nt == NodeType.nd_Ident || t.nt == NodeType.nd_Integer || t.nt == NodeType.nd_String) {
+                    sb.append(' ').append(t.value);
+                    sb.append("\n");
+                    if (echo) {
+                        System.out.println(" " + t.value);
+                    }
+                } else {
+                    sb.append("\n");
+                    if (echo) {
+                        System.out.println();
+                    }
+                    // right first, so the left subtree is printed before it
+                    pending.add(t.right);
+                    pending.add(t.left);
+                }
             }
+        }
+    }
 
+    /**
+     * Left-justify text in a field of the given width, like "%-14s" without going through Formatter.
+     *
+     * @param text  - text to pad.
+     * @param width - minimum field width.
+     * @return - padded text.
+     */
+    static String padRight(String text, int width) {
+        if (text.length() >= width) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(width).append(text);
+        while (sb.length() < width) {
+            sb.append(' ');
         }
         return sb.toString();
     }
 
     static void outputToFile(String result, String filename) {
         try {
-            String nameWithoutExt = filename.substring(0, filename.lastIndexOf('.'));
-            // Prefix filename with "myParsed to leave original files untouched
-            FileWriter myWriter = new FileWriter("src/main/resources/myParsed" + nameWithoutExt + ".par");
+            FileWriter myWriter = new FileWriter(outputFile(filename));
             myWriter.write(result);
             myWriter.close();
             System.out.println("Successfully wrote to the file.");
@@ -398,6 +626,23 @@ class Parser {
         }
     }
 
+    /**
+     * The .par file written for a .lex file.
+     *
+     * @param filename - .lex file name under src/main/resources.
+     * @return - the output file.
+     */
+    static File outputFile(String filename) {
+        String nameWithoutExt = filename.substring(0, filename.lastIndexOf('.'));
+        // Prefix filename with "myParsed to leave original files untouched
+        return new File("src/main/resources/myParsed" + nameWithoutExt + ".par");
+    }
+
+    /**
+     * Shared, read-only lookup from .lex token names to token types.
+     */
+    static final Map<String, TokenType> str_to_tokens = Collections.unmodifiableMap(createStringToTokensMap());
+
     static HashMap<String, TokenType> createStringToTokensMap() {
         HashMap<String, TokenType> map = new HashMap<>();
         map.put("Op_multiply", TokenType.Op_multiply);
@@ -435,6 +680,100 @@ class Parser {
     }
 
 
+    /**
+     * Decode the value of a literal token once, so later stages never re-parse its text.
+     *
+     * @param t    - token read from a .lex line.
+     * @param text - the value column of that line as written; t.value has its whitespace runs collapsed.
+     * @throws Exception - if an integer is out of range or a string has an unknown escape.
+     */
+    static void decodeLiteral(Token t, String text) throws Exception {
+        if (t.tokentype == TokenType.Integer) {
+            String digits = text.trim();
+            try {
+                t.number = digits.isEmpty() ? 0 : Integer.parseInt(digits);
+            } catch (NumberFormatException e) {
+                throw new Exception("Integer literal out of range: '" + digits + "' in line " + t.line + ", pos " + t.pos);
+            }
+        } else if (t.tokentype == TokenType.String) {
+            String quoted = text.trim();
+            String raw = quoted.length() >= 2 ? quoted.substring(1, quoted.length() - 1) : quoted;
+            t.decoded = Lexer.decodeEscapes(raw);
+            if (t.decoded == null) {
+                throw new Exception("Unknown escape sequence in string in line " + t.line + ", pos " + t.pos);
+            }
+        }
+    }
+
+    /**
+     * Read the tokens of a .lex file produced by the Lexer.
+     *
+     * @param lexFile - the .lex file.
+     * @return - list of tokens, ending with End_of_input.
+     * @throws Exception - if the file cannot be read or names an unknown token type.
+     */
+    static List<Token> readTokens(File lexFile) throws Exception {
+        return readTokens(lexFile, new ArrayList<>());
+    }
+
+    /**
+     * Read the tokens of a .lex file produced by the Lexer into the given list.
+     *
+     * @param lexFile - the .lex file.
+     * @param list    - destination, e.g. a TokenStore for files whose tokens may not fit in the heap.
+     * @return - the list, ending with End_of_input.
+     * @throws Exception - if the file cannot be read or names an unknown token type.
+     */
+    static <L extends List<Token>> L readTokens(File lexFile, L list) throws Exception {
+        return readTokens(new BufferedReader(new FileReader(lexFile)), list);
+    }
+
+    /**
+     * Read the tokens of .lex text, e.g. an entry of a pack file, into the given list.
+     *
+     * @param reader - the .lex text; closed when done.
+     * @param list   - destination.
+     * @return - the list, ending with End_of_input.
+     * @throws Exception - if the text cannot be read or names an unknown token type.
+     */
+    static <L extends List<Token>> L readTokens(BufferedReader reader, L list) throws Exception {
+        StringBuilder value;
+        String token;
+        int line, pos;
+        Token t;
+        boolean found;
+
+        String str;
+
+        while ((str = reader.readLine()) != null) {
+            if (str.isBlank()) {
+                continue;
+            }
+            StringTokenizer st = new StringTokenizer(str);
+            line = Integer.parseInt(st.nextToken());
+            pos = Integer.parseInt(st.nextToken());
+            token = st.nextToken();
+            value = new StringBuilder();
+            while (st.hasMoreTokens()) {
+                value.append(st.nextToken()).append(" ");
+            }
+            found = false;
+            if (str_to_tokens.containsKey(token)) {
+                found = true;
+                t = new Token(str_to_tokens.get(token), value.toString(), line, pos);
+                // the value column is everything after the token name; the name cannot occur in the numbers before it
+                decodeLiteral(t, str.substring(str.indexOf(token) + token.length()));
+                list.add(t);
+            }
+            if (!found) {
+                reader.close();
+                throw new Exception("Token not found: '" + token + "'");
+            }
+        }
+        reader.close();
+        return list;
+    }
+
     public static void main(String[] args) {
         List<String> fileList = new ArrayList<>();
         // If input passed to command line process only that file
@@ -452,51 +791,94 @@ class Parser {
                     fileList.add(contents[i]);
                 }
             }
+            if (PackFile.current() != null) {
+                for (String name : PackFile.current().names()) {
+                    if (name.endsWith(".lex") && !fileList.contains(name)) {
+                        fileList.add(name);
+                    }
+                }
+            }
         }
 
+        // a bad file is reported and the rest are still parsed; the exit status says whether any failed
+        boolean failed = false;
         for (String filename : fileList) {
             try {
-                StringBuilder value;
-                String token;
-                String result = "";
-                StringBuilder sb = new StringBuilder();
-                int line, pos;
-                Token t;
-                boolean found;
-                List<Token> list = new ArrayList<>();
-                Map<String, TokenType> str_to_tokens = createStringToTokensMap();
-
-                Scanner s = new Scanner(new File("src/main/resources/" + filename));
-
-                while (s.hasNext()) {
-                    String str = s.nextLine();
-                    StringTokenizer st = new StringTokenizer(str);
-                    line = Integer.parseInt(st.nextToken());
-                    pos = Integer.parseInt(st.nextToken());
-                    token = st.nextToken();
-                    value = new StringBuilder();
-                    while (st.hasMoreTokens()) {
-                        value.append(st.nextToken()).append(" ");
-                    }
-                    found = false;
-                    if (str_to_tokens.containsKey(token)) {
-                        found = true;
-                        t = new Token(str_to_tokens.get(token), value.toString(), line, pos);
-                        list.add(t);
-                    }
-                    if (!found) {
-                        throw new Exception("Token not found: '" + token + "'");
+                parseFile(filename, CompileBudget.defaults().start());
+            } catch (Exception e) {
+                System.out.println(CompileException.diagnostic(e));
+                failed = true;
+            }
+        }
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Parses one .lex file into its .par. A failure is thrown to the caller, which decides whether the
+     * rest of its batch still runs.
+     *
+     * @param filename - name of the .lex file in resources or in the open pack.
+     * @param budget   - limits of this compile, as returned by CompileBudget.start(); Main passes the one
+     *                 the Lexer ran under, so the deadline covers both phases of a program.
+     * @throws CompileException on a syntax error or an exceeded budget.
+     * @throws Exception        if the .lex cannot be read or the .par written.
+     */
+    static void parseFile(String filename, CompileBudget budget) throws Exception {
+        File lexFile = new File("src/main/resources/" + filename);
+        BuildManifest manifest = BuildManifest.current();
+        if (manifest != null && manifest.isUpToDate(lexFile, outputFile(filename))) {
+            return;
+        }
+        PackFile.Writer pack = PackFile.current();
+        CompileStats.Phase phase = CompileStats.begin(CompileStats.Stage.READ_LEX, filename);
+        // closed however the parse ends, so a failed file leaves no mapping or temp file behind
+        try (TokenStore list = new TokenStore()) {
+            long lexBytes;
+            if (pack != null && pack.contains(filename)) {
+                byte[] lex = pack.read(filename);
+                lexBytes = lex.length;
+                readTokens(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(lex))), list);
+            } else {
+                lexBytes = lexFile.length();
+                readTokens(lexFile, list);
+            }
+            phase.end(lexBytes, list.size(), 0, 0);
+
+            // statements are printed as they are parsed, so neither the tree nor its text is held in memory
+            phase = CompileStats.begin(CompileStats.Stage.PARSE, filename);
+            Parser parser = new Parser(list, budget);
+            NodeInterner interner = NodeInterner.enabled() ? new NodeInterner() : null;
+            parser.setInterner(interner);
+            try (ParWriter writer = new ParWriter(parser, true)) {
+                parser.parse(writer);
+                phase.end(lexBytes, list.size(), writer.nodes(), parser.getMaxDepth());
+
+                phase = CompileStats.begin(CompileStats.Stage.EMIT_PAR, filename);
+                long written;
+                if (pack != null) {
+                    // the .par may be larger than the heap, so it goes through a temp file into the pack
+                    File par = File.createTempFile("output", ".par");
+                    try {
+                        written = writer.writeTo(par);
+                        pack.add(outputFile(filename).getName(), par);
+                    } finally {
+                        par.delete();
                     }
+                } else {
+                    written = writer.writeTo(outputFile(filename));
+                }
+                System.out.println("Successfully wrote to the file.");
+                phase.end(written, 0, writer.nodes(), 0);
+            } finally {
+                if (interner != null) {
+                    interner.release();
                 }
-
-                Parser parser = new Parser(list);
-                result = parser.printAST(parser.parse(), sb);
-                outputToFile(result, filename);
-            } catch (FileNotFoundException e) {
-                error(-1, -1, "Exception: " + e.getMessage());
-            } catch (Exception e) {
-                error(-1, -1, "Exception: " + e.getMessage());
             }
         }
+        if (manifest != null) {
+            manifest.record(lexFile, outputFile(filename));
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,285 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * Token list for the Parser that keeps only a bounded window of tokens on the heap.
+ * Tokens are appended into an in-heap segment; once a segment is full it is encoded into
+ * fixed-width records and spilled to a temp file, so the token stream of a file can be larger
+ * than the heap. Reads are served from the heap for the open segment and otherwise from a
+ * read-only memory mapping that starts at the requested segment and reaches ahead over the
+ * following ones, which gives the Parser's sequential getNextToken() read-ahead while keeping
+ * the number of live mappings small. Random access works too, it just remaps more often.
+ * <p>
+ * A spilled segment is laid out as {@code count} records of {@link #RECORD_BYTES} bytes followed by
+ * the UTF-8 bytes of its token values. Short values that repeat (identifiers, the empty value)
+ * are interned in a bounded table on the heap instead of being written out.
+ */
+class TokenStore extends AbstractList<Parser.Token> implements RandomAccess, Closeable {
+    static final int DEFAULT_SEGMENT_TOKENS = 1 << 16;
+    static final int RECORD_BYTES = 32;
+    private static final int MAX_INTERNED = 1 << 14;
+    private static final int MAX_INTERNED_LENGTH = 32;
+    static final long WINDOW_BYTES = 64L << 20;
+    private static final Parser.TokenType[] TYPES = Parser.TokenType.values();
+
+    private final int segmentTokens;
+    private final long windowBytes;
+    private final Parser.Token[] tail;
+    private int size;
+    private int spilledSegments;
+    private long[] segmentOffsets = new long[16];
+
+    private final Map<String, Integer> internIndex = new HashMap<>();
+    private final List<String> interned = new ArrayList<>();
+
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private long fileEnd;
+    private byte[] values = new byte[1 << 12];
+    private int[] refs;
+    private ByteBuffer out;
+
+    private MappedByteBuffer window;
+    private int windowFirst = -1;
+    private int windowSegments;
+
+    TokenStore() {
+        this(DEFAULT_SEGMENT_TOKENS);
+    }
+
+    /**
+     * @param segmentTokens tokens per segment; at most one segment is held on the heap
+     */
+    TokenStore(int segmentTokens) {
+        this(segmentTokens, WINDOW_BYTES);
+    }
+
+    /**
+     * @param segmentTokens tokens per segment; at most one segment is held on the heap
+     * @param windowBytes   how far a read mapping reaches ahead; a window always covers at least one segment
+     */
+    TokenStore(int segmentTokens, long windowBytes) {
+        this.segmentTokens = segmentTokens;
+        this.windowBytes = windowBytes;
+        this.tail = new Parser.Token[segmentTokens];
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the number of segments written out to the temp file so far
+     */
+    int spilledSegments() {
+        return this.spilledSegments;
+    }
+
+    @Override
+    public boolean add(Parser.Token t) {
+        int slot = this.size - this.spilledSegments * this.segmentTokens;
+        if (slot == this.segmentTokens) {
+            spill();
+            slot = 0;
+        }
+        this.tail[slot] = t;
+        this.size++;
+        return true;
+    }
+
+    @Override
+    public Parser.Token get(int index) {
+        if (index < 0 || index >= this.size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + this.size);
+        }
+        int segment = index / this.segmentTokens;
+        int slot = index - segment * this.segmentTokens;
+        if (segment == this.spilledSegments) {
+            return this.tail[slot];
+        }
+        ByteBuffer buf = map(segment);
+        int base = (int) (this.segmentOffsets[segment] - this.segmentOffsets[this.windowFirst]);
+        int record = base + slot * RECORD_BYTES;
+        int valuesBase = base + segmentLength(segment) * RECORD_BYTES;
+
+        Parser.Token t = new Parser.Token(TYPES[buf.get(record)],
+                readValue(buf, valuesBase, buf.getInt(record + 16), buf.getInt(record + 20)),
+                buf.getInt(record + 4), buf.getInt(record + 8));
+        t.number = buf.getInt(record + 12);
+        t.decoded = readValue(buf, valuesBase, buf.getInt(record + 24), buf.getInt(record + 28));
+        return t;
+    }
+
+    private int segmentLength(int segment) {
+        return Math.min(this.segmentTokens, this.size - segment * this.segmentTokens);
+    }
+
+    private String readValue(ByteBuffer buf, int valuesBase, int ref, int length) {
+        if (length < 0) {
+            return null;
+        }
+        if (ref < 0) {
+            return this.interned.get(-ref - 1);
+        }
+        byte[] bytes = new byte[length];
+        buf.get(valuesBase + ref, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * maps a window of the temp file that starts at the segment and reaches ahead over as many
+     * following segments as fit in the window size, reusing the current window when it covers the segment.
+     * A read just before the current window maps one that ends at the segment instead, so scanning
+     * backwards remaps as rarely as scanning forwards; mappings are only released by the GC.
+     */
+    private ByteBuffer map(int segment) {
+        if (this.windowFirst >= 0 && segment >= this.windowFirst && segment < this.windowFirst + this.windowSegments) {
+            return this.window;
+        }
+        int first = segment;
+        int last = segment;
+        if (segment == this.windowFirst - 1) {
+            long end = this.segmentOffsets[segment + 1];
+            while (first > 0 && end - this.segmentOffsets[first - 1] <= this.windowBytes) {
+                first--;
+            }
+        } else {
+            long start = this.segmentOffsets[segment];
+            while (last + 1 < this.spilledSegments && this.segmentOffsets[last + 2] - start <= this.windowBytes) {
+                last++;
+            }
+        }
+        long start = this.segmentOffsets[first];
+        try {
+            this.window = this.channel.map(FileChannel.MapMode.READ_ONLY, start, this.segmentOffsets[last + 1] - start);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.windowFirst = first;
+        this.windowSegments = last - first + 1;
+        return this.window;
+    }
+
+    /**
+     * encodes the full in-heap segment into the temp file and empties it
+     */
+    private void spill() {
+        try {
+            if (this.channel == null) {
+                // deleted by close(); deleteOnExit is only the fallback when that fails
+                this.file = File.createTempFile("tokens", ".seg");
+                try {
+                    this.raf = new RandomAccessFile(this.file, "rw");
+                } catch (IOException e) {
+                    this.file.delete();
+                    throw e;
+                }
+                this.channel = this.raf.getChannel();
+            }
+            int valueBytes = 0;
+            if (this.refs == null) {
+                this.refs = new int[this.segmentTokens * 4];
+            }
+            int[] refs = this.refs;
+            for (int i = 0; i < this.segmentTokens; i++) {
+                Parser.Token t = this.tail[i];
+                valueBytes = encode(t.value, refs, i * 4, valueBytes);
+                valueBytes = encode(t.decoded, refs, i * 4 + 2, valueBytes);
+            }
+
+            int length = this.segmentTokens * RECORD_BYTES + valueBytes;
+            if (this.out == null || this.out.capacity() < length) {
+                this.out = ByteBuffer.allocateDirect(Math.max(length, this.segmentTokens * RECORD_BYTES * 2));
+            }
+            ByteBuffer out = this.out;
+            out.clear();
+            for (int i = 0; i < this.segmentTokens; i++) {
+                Parser.Token t = this.tail[i];
+                out.put((byte) t.tokentype.ordinal()).put((byte) 0).put((byte) 0).put((byte) 0);
+                out.putInt(t.line).putInt(t.pos).putInt(t.number);
+                out.putInt(refs[i * 4]).putInt(refs[i * 4 + 1]).putInt(refs[i * 4 + 2]).putInt(refs[i * 4 + 3]);
+            }
+            out.put(this.values, 0, valueBytes);
+            out.flip();
+            long at = this.fileEnd;
+            while (out.hasRemaining()) {
+                at += this.channel.write(out, at);
+            }
+
+            if (this.spilledSegments + 2 > this.segmentOffsets.length) {
+                this.segmentOffsets = Arrays.copyOf(this.segmentOffsets, this.segmentOffsets.length * 2);
+            }
+            this.segmentOffsets[this.spilledSegments] = this.fileEnd;
+            this.fileEnd += length;
+            this.segmentOffsets[this.spilledSegments + 1] = this.fileEnd;
+            this.spilledSegments++;
+            Arrays.fill(this.tail, null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * stores a value either in the intern table or in the segment's value area, filling in its ref and length
+     *
+     * @return the new end of the value area
+     */
+    private int encode(String value, int[] refs, int at, int valueBytes) {
+        if (value == null) {
+            refs[at] = 0;
+            refs[at + 1] = -1;
+            return valueBytes;
+        }
+        Integer index = this.internIndex.get(value);
+        if (index == null && value.length() <= MAX_INTERNED_LENGTH && this.interned.size() < MAX_INTERNED) {
+            index = this.interned.size();
+            this.interned.add(value);
+            this.internIndex.put(value, index);
+        }
+        if (index != null) {
+            refs[at] = -index - 1;
+            refs[at + 1] = value.length();
+            return valueBytes;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (valueBytes + bytes.length > this.values.length) {
+            this.values = Arrays.copyOf(this.values, Math.max(this.values.length * 2, valueBytes + bytes.length));
+        }
+        System.arraycopy(bytes, 0, this.values, valueBytes, bytes.length);
+        refs[at] = valueBytes;
+        refs[at + 1] = bytes.length;
+        return valueBytes + bytes.length;
+    }
+
+    /**
+     * releases the temp file; the store must not be used afterwards
+     */
+    @Override
+    public void close() throws IOException {
+        this.window = null;
+        if (this.channel != null) {
+            this.channel.close();
+            this.raf.close();
+            if (!this.file.delete()) {
+                this.file.deleteOnExit();
+            }
+            this.channel = null;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Allocation and time budgets for every phase of Lexer.main and Parser.main, so that patterns like
+ * {@code text += chr} or {@code source += line} fail a test instead of only showing up as slow builds.
+ * Programs from {@link ProgramGenerator} of 1x, 10x and 100x {@link #BASE_BYTES} go through the same steps
+ * as Lexer.lexFile and Parser.parseFile: the source is read, lexed and written as .lex, whose tokens are
+ * read back into a {@link TokenStore}, parsed statement by statement into a {@link ParWriter} and written
+ * as .par. Only the echo to stdout is left out. Each phase is measured on its own with
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes and the best of at least {@link #RUNS} runs is kept.
+ * The allocation per token (per AST node for parse and writePar) at 100x must stay within the budgets
+ * in src/test/resources/allocation-budgets.properties. Allocation and time per unit must also stay
+ * roughly flat as the input grows; anything quadratic multiplies them by 10 per step.
+ * Times are only compared with each other, never with fixed numbers, so the suite holds on slow machines.
+ * Run it with: gradle budgetTest. The measured table is printed so the budgets can be updated by hand.
+ */
+@Tag("budget")
+class AllocationBudgetTests {
+    static final int BASE_BYTES = 8 * 1024;
+    static final int[] SCALES = {1, 10, 100};
+    static final int RUNS = 5;
+    /**
+     * Production stores spill from 64K tokens on, which only the 100x program reaches; small segments put
+     * every scale in that regime, so parse pays for reading spilled tokens back the same way at each size.
+     */
+    static final int SEGMENT_TOKENS = 1024;
+    static final String[] PHASES = {"readSource", "lex", "writeLex", "readTokens", "parse", "writePar"};
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * Best allocation and time of one phase at one input size.
+     */
+    static class Measurement {
+        long units;
+        long bytes = Long.MAX_VALUE;
+        long nanos = Long.MAX_VALUE;
+
+        double bytesPerUnit() {
+            return (double) this.bytes / this.units;
+        }
+
+        double nanosPerUnit() {
+            return (double) this.nanos / this.units;
+        }
+    }
+
+    /**
+     * One unit of work whose allocation and time are measured.
+     */
+    interface Phase {
+        Object run() throws Exception;
+    }
+
+    private static Map<String, Measurement[]> measured;
+
+    static String unit(String phase) {
+        return phase.equals("parse") || phase.equals("writePar") ? "node" : "token";
+    }
+
+    private static long allocated() {
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * runs a phase and keeps its lowest allocation and time; the result is returned so the work is not dead code
+     */
+    private static Object measure(Phase phase, Measurement m, long overhead) throws Exception {
+        long before = allocated();
+        long start = System.nanoTime();
+        Object result = phase.run();
+        long nanos = System.nanoTime() - start;
+        long bytes = allocated() - before - overhead;
+        m.bytes = Math.min(m.bytes, Math.max(0, bytes));
+        m.nanos = Math.min(m.nanos, nanos);
+        return result;
+    }
+
+    /**
+     * runs every phase over one program and records the measurements at the given scale
+     */
+    private static void measureProgram(int scale, int index, Map<String, Measurement[]> results, long overhead)
+            throws Exception {
+        String program = ProgramGenerator.generate(42, 4, 64, (long) BASE_BYTES * scale);
+        File sourceFile = File.createTempFile("budget", ".c");
+        File lexFile = File.createTempFile("budget", ".lex");
+        File parFile = File.createTempFile("budget", ".par");
+        try {
+            try (FileWriter w = new FileWriter(sourceFile)) {
+                w.write(program);
+            }
+            Measurement[] m = new Measurement[PHASES.length];
+            for (int i = 0; i < m.length; i++) {
+                m[i] = new Measurement();
+                results.get(PHASES[i])[index] = m[i];
+            }
+            // small sizes finish in microseconds, so they get more runs for a stable best time
+            for (int run = 0; run < Math.max(RUNS, 50 / scale); run++) {
+                // Lexer.lexFile: printTokens without the echo to stdout, then outputToFile
+                String source = (String) measure(() -> Lexer.readSource(sourceFile), m[0], overhead);
+                String lexed = (String) measure(() -> {
+                    StringBuilder sb = new StringBuilder();
+                    new Lexer(source).appendTokens(sb, false);
+                    return sb.toString();
+                }, m[1], overhead);
+                measure(() -> {
+                    try (FileWriter w = new FileWriter(lexFile)) {
+                        w.write(lexed);
+                    }
+                    return lexFile;
+                }, m[2], overhead);
+
+                // Parser.parseFile: tokens into a TokenStore, statements streamed through a ParWriter
+                try (TokenStore tokens = (TokenStore) measure(() -> Parser.readTokens(lexFile, new TokenStore(SEGMENT_TOKENS)),
+                        m[3], overhead)) {
+                    Parser parser = new Parser(tokens);
+                    try (ParWriter writer = (ParWriter) measure(() -> {
+                        ParWriter w = new ParWriter(parser, false);
+                        parser.parse(w);
+                        return w;
+                    }, m[4], overhead)) {
+                        measure(() -> writer.writeTo(parFile), m[5], overhead);
+
+                        m[0].units = tokens.size();
+                        m[1].units = tokens.size();
+                        m[2].units = tokens.size();
+                        m[3].units = tokens.size();
+                        m[4].units = writer.nodes();
+                        m[5].units = writer.nodes();
+                    }
+                }
+            }
+        } finally {
+            sourceFile.delete();
+            lexFile.delete();
+            parFile.delete();
+        }
+    }
+
+    /**
+     * Measures all phases once for the whole class.
+     */
+    static synchronized Map<String, Measurement[]> measurements() throws Exception {
+        if (measured != null) {
+            return measured;
+        }
+        Map<String, Measurement[]> results = new LinkedHashMap<>();
+        for (String phase : PHASES) {
+            results.put(phase, new Measurement[SCALES.length]);
+        }
+        // what reading the counter itself costs, taken off every measurement
+        Measurement empty = new Measurement();
+        for (int i = 0; i < 100; i++) {
+            measure(() -> null, empty, 0);
+        }
+        // warm the JIT on the largest size, so the measured runs see compiled code
+        measureProgram(SCALES[SCALES.length - 1], 0, results, empty.bytes);
+        for (int i = 0; i < SCALES.length; i++) {
+            measureProgram(SCALES[i], i, results, empty.bytes);
+        }
+
+        System.out.printf("%-11s %6s %10s %10s %14s %12s%n", "phase", "scale", "units", "bytes", "bytes/unit", "ns/unit");
+        for (Map.Entry<String, Measurement[]> e : results.entrySet()) {
+            for (int i = 0; i < SCALES.length; i++) {
+                Measurement m = e.getValue()[i];
+                System.out.printf("%-11s %5dx %10d %10d %9.1f/%-5s %12.1f%n", e.getKey(), SCALES[i], m.units, m.bytes,
+                        m.bytesPerUnit(), unit(e.getKey()), m.nanosPerUnit());
+            }
+        }
+        measured = results;
+        return measured;
+    }
+
+    static Properties budgets() throws IOException {
+        Properties p = new Properties();
+        try (FileReader r = new FileReader("src/test/resources/allocation-budgets.properties")) {
+            p.load(r);
+        }
+        return p;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"readSource", "lex", "writeLex", "readTokens", "parse", "writePar"})
+    void testAllocationBudget(String phase) throws Exception {
+        String key = phase + ".bytesPer" + (unit(phase).equals("node") ? "Node" : "Token");
+        String budget = budgets().getProperty(key);
+        if (budget == null) {
+            fail(phase + ": no budget " + key + " in allocation-budgets.properties");
+        }
+        Measurement m = measurements().get(phase)[SCALES.length - 1];
+        if (m.bytesPerUnit() > Double.parseDouble(budget)) {
+            fail(String.format("%s: allocates %.1f bytes per %s at %dx, over its budget of %s (%s)", phase,
+                    m.bytesPerUnit(), unit(phase), SCALES[SCALES.length - 1], budget, key));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"readSource", "lex", "writeLex", "readTokens", "parse", "writePar"})
+    void testLinearScaling(String phase) throws Exception {
+        Properties budgets = budgets();
+        double allocationGrowth = Double.parseDouble(budgets.getProperty("scaling.maxAllocationGrowth"));
+        double timeGrowth = Double.parseDouble(budgets.getProperty("scaling.maxTimeGrowth"));
+        Measurement[] m = measurements().get(phase);
+        for (int i = 1; i < SCALES.length; i++) {
+            // per unit costs at the smaller size include fixed overheads, so a linear phase only gets cheaper
+            double bytes = m[i].bytesPerUnit() / Math.max(1.0, m[i - 1].bytesPerUnit());
+            if (bytes > allocationGrowth) {
+                fail(String.format("%s: bytes per %s grow %.2fx from %dx to %dx input, more than the allowed %.2fx",
+                        phase, unit(phase), bytes, SCALES[i - 1], SCALES[i], allocationGrowth));
+            }
+            double nanos = m[i].nanosPerUnit() / m[i - 1].nanosPerUnit();
+            if (nanos > timeGrowth) {
+                fail(String.format("%s: time per %s grows %.2fx from %dx to %dx input, more than the allowed %.2fx",
+                        phase, unit(phase), nanos, SCALES[i - 1], SCALES[i], timeGrowth));
+            }
+        }
+    }
+}
@@ -1,17 +1,43 @@
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
 import org.junit.jupiter.params.provider.ValueSource;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
  * These parameterized tests use the provided files so that we know
  * they are doing the right thing.
- * There are a total of 3 tests for the Lexer and 3 tests for the Parser.
+ * There are 3 tests each for the Lexer, the Parser and the IR, which compare
+ * the outputs against the provided .lex, .par and .ir files. The tests after
+ * them cover the optimizer, the token store, incremental builds, pack files,
+ * compiler sessions, node sharing, the interpreter, compile budgets and startup.
  * To see the output of all the files, including the one's authored by
  * Derrek Do navigate to the Main file and run that.
  *
@@ -57,4 +83,646 @@ class IntegrationTests {
         Parser.main(args);
         assertTrue(fileContentsEqual(fileName + ".par", "myParsed" + fileName + ".par"));
     }
+
+
+    @ParameterizedTest
+    @ValueSource(strings = {"hello", "count", "loop"})
+    void testIR(String fileName) {
+        String[] args = {fileName + ".lex"};
+        IR.main(args);
+        assertTrue(fileContentsEqual(fileName + ".ir", "myIR" + fileName + ".ir"));
+    }
+
+    /**
+     * Each program makes one optimization fire: fold.c a folded constant, copy.c a propagated copy and a
+     * reused expression, deadstore.c a removed store. The .ir next to it is the expected optimized IR.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"fold", "copy", "deadstore"})
+    void testIROptimizations(String name) throws IOException {
+        String source = Files.readString(Path.of("src/test/resources/ir/" + name + ".c"));
+        IR.Cfg cfg = IR.lower(CompilerSession.get().tree(source));
+        IR.optimize(cfg);
+        assertEquals(stripLines(Files.readString(Path.of("src/test/resources/ir/" + name + ".ir"))),
+                stripLines(cfg.toString()));
+    }
+
+    /**
+     * Like testIROptimizations but fed from a .lex file the way IR.main reads one, whose literals hold runs of
+     * spaces and a raw tab that the .lex reader must not collapse.
+     */
+    @Test
+    void testIRFromLex() throws Exception {
+        List<Parser.Token> tokens = Parser.readTokens(new File("src/test/resources/ir/spaces.lex"));
+        IR.Cfg cfg = IR.lower(new Parser(tokens).parse());
+        IR.optimize(cfg);
+        assertEquals(stripLines(Files.readString(Path.of("src/test/resources/ir/spaces.ir"))),
+                stripLines(cfg.toString()));
+    }
+
+    /**
+     * The .lex reader splits lines on whitespace, so literals must be decoded from the line as written.
+     */
+    @Test
+    void testStringLiteralWhitespace() throws Exception {
+        String lex = CompilerSession.get().lex("print(\"a  b\\tc  \\n\", \" \t x\");").toString();
+        List<Parser.Token> tokens = Parser.readTokens(new BufferedReader(new StringReader(lex)), new ArrayList<>());
+        List<String> decoded = tokens.stream().filter(t -> t.tokentype == Parser.TokenType.String)
+                .map(t -> t.decoded).collect(Collectors.toList());
+        assertEquals(List.of("a  b\tc  \n", " \t x"), decoded);
+    }
+
+    /**
+     * Segments of a few tokens and a window of about four segments make a small program spill, intern
+     * and remap the way a multi-gigabyte one does with the defaults.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2, 3, 7, 64})
+    void testTokenStore(int segmentTokens) throws Exception {
+        String lex = CompilerSession.get().lex(ProgramGenerator.generate(7, 4, 64, 16 * 1024)).toString();
+        List<Parser.Token> expected = Parser.readTokens(new BufferedReader(new StringReader(lex)), new ArrayList<>());
+        // more distinct identifiers than the intern table holds, so later ones are stored inline
+        for (int i = 0; i < 20_000; i++) {
+            expected.add(new Parser.Token(Parser.TokenType.Identifier, "v" + i + " ", 1, i + 1));
+        }
+        try (TokenStore store = new TokenStore(segmentTokens, 4L * segmentTokens * TokenStore.RECORD_BYTES)) {
+            store.addAll(expected);
+            assertTrue(store.spilledSegments() > 0);
+            for (int i = 0; i < expected.size(); i++) {
+                assertSameToken(expected.get(i), store.get(i), i);
+            }
+            // reading backwards leaves each window at its first segment and maps the one before it
+            for (int i = expected.size() - 1; i >= 0; i--) {
+                assertSameToken(expected.get(i), store.get(i), i);
+            }
+        }
+    }
+
+    /**
+     * One block of 100,000 statements is a single top-level statement whose Sequence chain is as long;
+     * streaming it must not overflow the stack while printing.
+     */
+    @Test
+    void testLongBlock() throws Exception {
+        int statements = 100_000;
+        String lex = CompilerSession.get().lex("{\n" + "x = 1;\n".repeat(statements) + "}\n").toString();
+        File par = File.createTempFile("block", ".par");
+        try (TokenStore store = Parser.readTokens(new BufferedReader(new StringReader(lex)), new TokenStore())) {
+            Parser parser = new Parser(store);
+            try (ParWriter writer = new ParWriter(parser, false)) {
+                assertEquals(1, parser.parse(writer));
+                writer.writeTo(par);
+            }
+            List<String> lines = Files.readAllLines(par.toPath());
+            // Sequence and ";" framing, then per statement a Sequence, Assign, Identifier and Integer line
+            assertEquals(2 + 4 * statements + 1, lines.size());
+            assertEquals("Assign", lines.get(lines.size() - 3).trim());
+        } finally {
+            par.delete();
+        }
+    }
+
+    /**
+     * Spill and statement files are deleted by close(), not left on disk until the JVM exits.
+     */
+    @Test
+    void testTempFilesDeletedOnClose() throws Exception {
+        File tmp = new File(System.getProperty("java.io.tmpdir"));
+        List<String> before = tempFiles(tmp);
+        String lex = CompilerSession.get().lex(ProgramGenerator.generate(3, 4, 64, 16 * 1024)).toString();
+        try (TokenStore store = Parser.readTokens(new BufferedReader(new StringReader(lex)), new TokenStore(64))) {
+            assertTrue(store.spilledSegments() > 0);
+            Parser parser = new Parser(store);
+            try (ParWriter writer = new ParWriter(parser, false)) {
+                parser.parse(writer);
+                assertTrue(tempFiles(tmp).size() >= before.size() + 2, "spill and statement files were not created");
+            }
+        }
+        assertEquals(before, tempFiles(tmp));
+    }
+
+    private static List<String> tempFiles(File dir) {
+        String[] names = dir.list((d, name) -> name.startsWith("tokens") && name.endsWith(".seg")
+                || name.startsWith("statements") && name.endsWith(".par"));
+        List<String> sorted = new ArrayList<>(List.of(Objects.requireNonNull(names)));
+        sorted.sort(null);
+        return sorted;
+    }
+
+    void assertSameToken(Parser.Token expected, Parser.Token actual, int index) {
+        assertEquals(expected.tokentype, actual.tokentype, "type of token " + index);
+        assertEquals(expected.value, actual.value, "value of token " + index);
+        assertEquals(expected.line, actual.line, "line of token " + index);
+        assertEquals(expected.pos, actual.pos, "pos of token " + index);
+        assertEquals(expected.number, actual.number, "number of token " + index);
+        assertEquals(expected.decoded, actual.decoded, "decoded text of token " + index);
+    }
+
+    /**
+     * Records one build step, applies a change and reloads the manifest the way the next build would.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"nothing", "touched input", "input", "output", "missing output", "version"})
+    void testBuildManifest(String change) throws IOException {
+        Path dir = Files.createTempDirectory("manifest");
+        File input = dir.resolve("count.c").toFile();
+        File output = dir.resolve("myLexedcount.lex").toFile();
+        File manifestFile = dir.resolve("manifest.tsv").toFile();
+        try {
+            Files.writeString(input.toPath(), "count = 1;\n");
+            Files.writeString(output.toPath(), "    1      1 Identifier      count\n");
+            BuildManifest built = BuildManifest.load(manifestFile, "v1");
+            assertFalse(built.isUpToDate(input, output));
+            built.record(input, output);
+            built.save();
+
+            String version = "v1";
+            long later = output.lastModified() + 5_000;
+            switch (change) {
+                case "touched input":
+                    assertTrue(input.setLastModified(later));
+                    break;
+                case "input":
+                    Files.writeString(input.toPath(), "count = 2;\n\n");
+                    break;
+                case "output":
+                    Files.writeString(output.toPath(), "edited by hand\n");
+                    break;
+                case "missing output":
+                    assertTrue(output.delete());
+                    break;
+                case "version":
+                    version = "v2";
+                    break;
+                default:
+                    break;
+            }
+            boolean current = change.equals("nothing") || change.equals("touched input");
+            BuildManifest next = BuildManifest.load(manifestFile, version);
+            assertEquals(current, next.isUpToDate(input, output), change);
+            assertEquals(current ? "incremental build: 0 rebuilt, 1 up to date" : "incremental build: 1 rebuilt, 0 up to date",
+                    next.summary());
+        } finally {
+            for (File f : Objects.requireNonNull(dir.toFile().listFiles())) {
+                f.delete();
+            }
+            dir.toFile().delete();
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"Lexer.class", "Lexer$Token.class", "Parser$Node.class", "ParWriter.class", "TokenStore.class"})
+    void testCompilerVersionCoversOutputClasses(String classFile) {
+        assertTrue(BuildManifest.isCompilerClass(classFile));
+        assertFalse(BuildManifest.isCompilerClass("LexerBenchmark.class"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"hello.t", "count.c", "loop.py"})
+    void testPackFile(String fileName) throws IOException {
+        String fileNameNoFileExt = fileName.substring(0, fileName.lastIndexOf("."));
+        File pack = File.createTempFile("outputs", ".pack");
+        pack.deleteOnExit();
+        PackFile.enable(pack);
+        try {
+            Lexer.main(new String[]{fileName});
+            // the Parser reads the .lex back out of the still open pack
+            Parser.main(new String[]{"myLexed" + fileNameNoFileExt + ".lex"});
+        } finally {
+            PackFile.disable();
+        }
+        // compared straight from the pack, so the test leaves src/main/resources alone
+        try (PackFile.Reader reader = new PackFile.Reader(pack)) {
+            assertEquals(stripLines(Files.readString(Path.of("src/main/resources/" + fileNameNoFileExt + ".lex"))),
+                    stripLines(entry(reader, "myLexed" + fileNameNoFileExt + ".lex")));
+            assertEquals(stripLines(Files.readString(Path.of("src/main/resources/" + fileNameNoFileExt + ".par"))),
+                    stripLines(entry(reader, "myParsedmyLexed" + fileNameNoFileExt + ".par")));
+        }
+    }
+
+    String entry(PackFile.Reader reader, String name) throws IOException {
+        ByteBuffer bytes = reader.get(name);
+        assertNotNull(bytes, "no entry " + name);
+        return Charset.defaultCharset().decode(bytes).toString();
+    }
+
+    /**
+     * Threads add interleaved entries of different sizes, some through files; each must read back whole.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {2, 8})
+    void testPackFileConcurrentWriters(int threads) throws Exception {
+        File pack = File.createTempFile("concurrent", ".pack");
+        pack.deleteOnExit();
+        int perThread = 200;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (PackFile.Writer writer = new PackFile.Writer(pack)) {
+            List<Future<?>> done = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                done.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        String name = "t" + thread + "-" + i;
+                        if (i % 10 == 0) {
+                            File f = File.createTempFile("entry", ".tmp");
+                            Files.writeString(f.toPath(), packEntry(name));
+                            writer.add(name, f);
+                            f.delete();
+                        } else {
+                            writer.add(name, packEntry(name));
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : done) {
+                f.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        try (PackFile.Reader reader = new PackFile.Reader(pack)) {
+            assertEquals(threads * perThread, reader.names().size());
+            for (String name : reader.names()) {
+                assertEquals(packEntry(name), entry(reader, name));
+            }
+        }
+    }
+
+    private static String packEntry(String name) {
+        return (name + "|").repeat(1 + Math.abs(name.hashCode()) % 300);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"never closed", "empty", "not a pack"})
+    void testPackFileRejectsIncomplete(String kind) throws IOException {
+        File pack = File.createTempFile("broken", ".pack");
+        pack.deleteOnExit();
+        if (kind.equals("never closed")) {
+            PackFile.Writer writer = new PackFile.Writer(pack);
+            writer.add("a.lex", "entry that has no index yet");
+            // the footer is only written by close(); a crashed writer leaves this behind
+        } else if (kind.equals("not a pack")) {
+            Files.writeString(pack.toPath(), "x".repeat(100));
+        }
+        IOException e = assertThrows(IOException.class, () -> new PackFile.Reader(pack));
+        assertTrue(e.getMessage().contains("is not a closed pack file"), e.getMessage());
+    }
+
+    /**
+     * A pack is input like any other; an entry name must not write outside the extraction directory.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"../escape.lex", "sub/../../escape.lex", "/tmp/escape.lex", "."})
+    void testPackFileExtractStaysInDirectory(String name) throws IOException {
+        File pack = File.createTempFile("escape", ".pack");
+        pack.deleteOnExit();
+        Path dir = Files.createTempDirectory("extract").resolve("out");
+        try (PackFile.Writer writer = new PackFile.Writer(pack)) {
+            writer.add("sub/ok.lex", "inside");
+            writer.add(name, "outside");
+        }
+        try (PackFile.Reader reader = new PackFile.Reader(pack)) {
+            File ok = reader.extract("sub/ok.lex", dir.toFile());
+            assertEquals(dir.resolve("sub/ok.lex").toFile(), ok);
+            assertEquals("inside", Files.readString(ok.toPath()));
+            IOException e = assertThrows(IOException.class, () -> reader.extract(name, dir.toFile()));
+            assertTrue(e.getMessage().contains("outside"), e.getMessage());
+        }
+        Path target = dir.resolve(name).normalize();
+        if (!target.startsWith(dir)) {
+            assertFalse(Files.exists(target), target + " was written");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"hello.t", "count.c", "loop.py"})
+    void testCompilerSession(String fileName) throws IOException {
+        String fileNameNoFileExt = fileName.substring(0, fileName.lastIndexOf("."));
+        String source = Files.readString(Path.of("src/main/resources/" + fileName));
+        CompilerSession session = CompilerSession.get();
+        // compile twice so the second run goes through the recycled buffers
+        for (int i = 0; i < 2; i++) {
+            assertEquals(stripLines(Files.readString(Path.of("src/main/resources/" + fileNameNoFileExt + ".lex"))),
+                    stripLines(session.lex(source).toString()));
+            assertEquals(stripLines(Files.readString(Path.of("src/main/resources/" + fileNameNoFileExt + ".par"))),
+                    stripLines(session.parse(source).toString()));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"99bottles.c", "fizzbuzz.c", "prime.c"})
+    void testShareNodes(String fileName) throws IOException {
+        String source = Files.readString(Path.of("src/main/resources/" + fileName));
+        CompilerSession session = CompilerSession.get();
+        String unshared = session.parse(source).toString();
+        session.setShareNodes(true);
+        try {
+            assertEquals(unshared, session.parse(source).toString());
+            // the same statement twice is one subtree, down to the leaves
+            Parser.Node tree = session.tree("x = a + 1;\ny = a + 1;\n");
+            Parser.Node first = tree.left.right;
+            Parser.Node second = tree.right;
+            assertSame(first.right, second.right);
+            assertSame(first.right.left, second.right.left);
+        } finally {
+            session.setShareNodes(false);
+        }
+
+        // and through Parser.main, as Main --share-nodes runs it
+        String lexName = "myLexed" + fileName.substring(0, fileName.lastIndexOf(".")) + ".lex";
+        Path par = Parser.outputFile(lexName).toPath();
+        Parser.main(new String[]{lexName});
+        String plain = Files.readString(par);
+        NodeInterner.enable();
+        try {
+            Parser.main(new String[]{lexName});
+        } finally {
+            NodeInterner.disable();
+        }
+        assertEquals(plain, Files.readString(par));
+    }
+
+    /**
+     * Streaming releases the interner after every top-level statement: subtrees are shared within a
+     * statement but not across them, and the table stays as small as one statement.
+     */
+    @Test
+    void testShareNodesStreaming() throws Exception {
+        String source = "x = (a + 1) * (a + 1);\ny = a + 1;\n" + ProgramGenerator.generate(5, 4, 64, 64 * 1024);
+        String lex = CompilerSession.get().lex(source).toString();
+        Parser parser = new Parser(Parser.readTokens(new BufferedReader(new StringReader(lex)), new ArrayList<>()));
+        NodeInterner interner = new NodeInterner();
+        parser.setInterner(interner);
+        List<Parser.Node> statements = new ArrayList<>();
+        int[] largest = new int[1];
+        parser.parse(s -> {
+            largest[0] = Math.max(largest[0], interner.size());
+            if (statements.size() < 2) {
+                statements.add(s);
+            }
+        });
+        Parser.Node product = statements.get(0).right;
+        assertSame(product.left, product.right);
+        assertFalse(product.left == statements.get(1).right, "shared across top-level statements");
+        assertEquals(0, interner.size());
+        assertTrue(largest[0] < 1000, "interner held " + largest[0] + " nodes for one statement");
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"99bottles.c", "fizzbuzz.c", "count.c"})
+    void testInterpreter(String fileName) throws IOException {
+        Parser.Node tree = CompilerSession.get().tree(Files.readString(Path.of("src/main/resources/" + fileName)));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        Interpreter.walk(tree, expected);
+        Interpreter.RootNode program = Interpreter.compile(tree);
+        // the second run executes the tree the first run specialized
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            program.run(actual);
+            assertEquals(expected.toString(), actual.toString());
+        }
+        assertTrue(program.rewrites() > 0);
+    }
+
+    /**
+     * Expected output written out independently of both engines.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"fizzbuzz.c", "count.c"})
+    void testInterpreterOutput(String fileName) throws IOException {
+        StringBuilder expected = new StringBuilder();
+        if (fileName.equals("fizzbuzz.c")) {
+            for (int i = 1; i <= 100; i++) {
+                expected.append(i % 15 == 0 ? "FizzBuzz" : i % 3 == 0 ? "Fizz" : i % 5 == 0 ? "Buzz" : String.valueOf(i))
+                        .append('\n');
+            }
+        } else {
+            for (int i = 1; i < 10; i++) {
+                expected.append("count is: ").append(i).append('\n');
+            }
+        }
+        Parser.Node tree = CompilerSession.get().tree(Files.readString(Path.of("src/main/resources/" + fileName)));
+        ByteArrayOutputStream walked = new ByteArrayOutputStream();
+        Interpreter.walk(tree, walked);
+        assertEquals(expected.toString(), walked.toString());
+        ByteArrayOutputStream executed = new ByteArrayOutputStream();
+        Interpreter.compile(tree).run(executed);
+        assertEquals(expected.toString(), executed.toString());
+    }
+
+    /**
+     * The While is replaced by its fused form while its first iteration is still running, and the else
+     * side of the If only rewrites when the loop reaches it several iterations later. Both old nodes
+     * are off the tree by then, so the rest of the run, and every later run, must use the replacements.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {1, 3, 6})
+    void testInterpreterRewrites(int limit) {
+        String source = "i = 0;\nwhile (i < " + limit + ") {\n    if (i < 2) print(\"small \", i, \"\\n\");\n"
+                + "    else print(\"big \", i, \"\\n\");\n    i = i + 1;\n}\n";
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < limit; i++) {
+            expected.append(i < 2 ? "small " : "big ").append(i).append('\n');
+        }
+        Interpreter.RootNode program = Interpreter.compile(CompilerSession.get().tree(source));
+        assertEquals(0, program.rewrites());
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        program.run(first);
+        assertEquals(expected.toString(), first.toString());
+        int rewrites = program.rewrites();
+        assertTrue(rewrites > 0);
+
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        program.run(second);
+        assertEquals(expected.toString(), second.toString());
+        // every node the second run reaches was already specialized by the first
+        assertEquals(rewrites, program.rewrites());
+    }
+
+    @ParameterizedTest
+    @CsvSource({"SYNTAX, /* never closed", "SYNTAX, 'print(\"never closed);'",
+        "DEPTH, x = ((((((((1))))))));", "NODES, x = 1; y = 2; z = 3;"})
+    void testCompileBudget(CompileException.Kind kind, String source) {
+        CompilerSession session = CompilerSession.get();
+        session.setBudget(new CompileBudget().maxDepth(5).maxNodes(8));
+        try {
+            CompileException e = assertThrows(CompileException.class, () -> session.tree(source));
+            assertEquals(kind, e.kind);
+            // a failed compile leaves the session usable
+            assertEquals(stripLines(Files.readString(Path.of("src/main/resources/hello.par"))),
+                    stripLines(session.parse(Files.readString(Path.of("src/main/resources/hello.t"))).toString()));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            session.setBudget(CompileBudget.UNLIMITED);
+        }
+    }
+
+    /**
+     * Main --budget reports a value it cannot read as a usage error rather than a NumberFormatException.
+     */
+    @ParameterizedTest
+    @CsvSource({"deadline=5x, 5x", "deadline=s, deadline", "tokens=abc, abc", "depth=-1, -1",
+        "nodes=3000000000, 3000000000", "source=99999999999G, 99999999999G", "tokens, tokens", "width=80, width"})
+    void testCompileBudgetBadSpec(String spec, String named) {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, () -> CompileBudget.parse(spec));
+        assertTrue(e.getMessage().contains(named), e.getMessage());
+    }
+
+    @Test
+    void testCompileBudgetUnits() {
+        CompileBudget budget = CompileBudget.parse("deadline=5m, source=1K, tokens=10").start();
+        budget.checkTime(1, 1);
+        budget.checkSource(1024);
+        assertEquals(CompileException.Kind.SOURCE_SIZE,
+                assertThrows(CompileException.class, () -> budget.checkSource(1025)).kind);
+        budget.checkTokens(10, 1, 1);
+        assertEquals(CompileException.Kind.TOKENS,
+                assertThrows(CompileException.class, () -> budget.checkTokens(11, 1, 1)).kind);
+    }
+
+    /**
+     * A line comment ends at its newline whatever its length, and at the end of input on the last line.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = {"x = 1; // a", "x = 1; // ab", "x = 1; // a\ny = 2;", "x = 1; // ab\ny = 2;",
+        "x = 1;\n//", "x = 1; //\n// ab\ny = x / 2;"})
+    void testLineComment(String source) {
+        CompilerSession session = CompilerSession.get();
+        String expected = session.parse(source.replaceAll("//[^\n]*", "")).toString();
+        assertEquals(expected, session.parse(source).toString());
+    }
+
+    @Test
+    void testCompileBudgetDeadline() {
+        String program = ProgramGenerator.generate(42, 4, 64, 256 * 1024);
+        CompilerSession session = CompilerSession.get();
+        session.setBudget(new CompileBudget().timeout(1, TimeUnit.MILLISECONDS));
+        try {
+            CompileException e = assertThrows(CompileException.class, () -> session.tree(program));
+            assertEquals(CompileException.Kind.DEADLINE, e.kind);
+        } finally {
+            session.setBudget(CompileBudget.UNLIMITED);
+        }
+    }
+
+    /**
+     * The deadline runs from start(), so a program whose parse goes past it fails even when the
+     * lexing happened well within it, the way Main shares one budget across both phases.
+     */
+    @Test
+    void testCompileBudgetDeadlineAcrossPhases() throws Exception {
+        String program = ProgramGenerator.generate(42, 4, 64, 256 * 1024);
+        CompileBudget budget = new CompileBudget().timeout(50, TimeUnit.MILLISECONDS).start();
+        String lexed = CompilerSession.get().lex(program).toString();
+        List<Parser.Token> tokens = Parser.readTokens(new BufferedReader(new StringReader(lexed)), new ArrayList<>());
+        Thread.sleep(100);
+        // a budget armed now would let this parse finish
+        assertNotNull(new Parser(tokens, new CompileBudget().timeout(1, TimeUnit.MINUTES).start()).parse());
+        CompileException e = assertThrows(CompileException.class, () -> new Parser(tokens, budget).parse());
+        assertEquals(CompileException.Kind.DEADLINE, e.kind);
+    }
+
+    /**
+     * cancel() from another thread stops a compile in flight; the worker compiles until one is stopped,
+     * since a cancel that lands between compiles does nothing.
+     */
+    @ParameterizedTest
+    @ValueSource(ints = {64, 1024})
+    void testCompileBudgetCancel(int kilobytes) throws Exception {
+        String program = ProgramGenerator.generate(7, 4, 64, kilobytes * 1024L);
+        AtomicReference<CompilerSession> running = new AtomicReference<>();
+        CompileException[] stopped = new CompileException[1];
+        Thread worker = new Thread(() -> {
+            CompilerSession session = CompilerSession.get();
+            session.setBudget(new CompileBudget());
+            running.set(session);
+            for (int attempt = 0; attempt < 1000 && stopped[0] == null; attempt++) {
+                try {
+                    session.tree(program);
+                } catch (CompileException e) {
+                    stopped[0] = e;
+                }
+            }
+        });
+        worker.start();
+        while (worker.isAlive()) {
+            CompilerSession session = running.get();
+            if (session != null) {
+                session.cancel();
+            }
+            worker.join(1);
+        }
+        assertNotNull(stopped[0], "no compile was cancelled");
+        assertEquals(CompileException.Kind.CANCELLED, stopped[0].kind);
+    }
+
+    /**
+     * Only the parser's own recursion counts as nesting too deep; an overflow in the listener is its own.
+     */
+    @Test
+    void testParseListenerOverflow() throws Exception {
+        Parser parser = new Parser(Parser.readTokens(new File("src/main/resources/hello.lex")));
+        assertThrows(StackOverflowError.class, () -> parser.parse(s -> {
+            throw new StackOverflowError();
+        }));
+    }
+
+    /**
+     * Instrumentation must stay out of the startup path: a Lexer run loaded about 550 classes before JFR
+     * was looked up on every phase and over 900 after, so anything from jdk.jfr beyond FlightRecorder
+     * or a count well past the former means a phase started touching it again.
+     */
+    @Test
+    void testStartupClassCount() throws Exception {
+        File log = File.createTempFile("classes", ".log");
+        try {
+            Process p = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-Xlog:class+load:file=" + log.getPath(), "-cp", System.getProperty("java.class.path"),
+                    "Lexer", "hello.t")
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectErrorStream(true)
+                    .start();
+            assertEquals(0, p.waitFor());
+            List<String> loaded = Files.readAllLines(log.toPath());
+            List<String> jfr = loaded.stream().map(l -> l.split(" ")[1])
+                    .filter(c -> c.startsWith("jdk.jfr.") && !c.equals("jdk.jfr.FlightRecorder"))
+                    .collect(Collectors.toList());
+            assertEquals(List.of(), jfr, "JFR loaded without a recording");
+            assertTrue(loaded.size() < 700, "Lexer loaded " + loaded.size() + " classes");
+        } finally {
+            log.delete();
+        }
+    }
+
+    /**
+     * A file that fails does not end the batch: the files after it still compile, the stats are still
+     * printed, and Main lists the failures and exits with 1 once at the end.
+     */
+    @Test
+    void testMainContinuesPastFailures() throws Exception {
+        File out = File.createTempFile("main", ".txt");
+        try {
+            Process p = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"), "Main", "--stats", "--budget", "tokens=50")
+                    .redirectOutput(out)
+                    .redirectErrorStream(true)
+                    .start();
+            assertEquals(1, p.waitFor());
+            List<String> lines = Files.readAllLines(out.toPath());
+            int failed = lines.indexOf("2 of 11 files failed:");
+            assertTrue(failed > 0, String.join("\n", lines));
+            assertEquals(List.of("  fizzbuzz.c: more than 50 tokens in line 10, pos 8",
+                    "  myLexedprime.lex: more than 50 tokens"), lines.subList(failed + 1, lines.size()));
+            // hello.t comes after fizzbuzz.c in Main's list
+            assertTrue(lines.stream().anyMatch(l -> l.startsWith("hello.t ")), "no stats for hello.t");
+        } finally {
+            out.delete();
+        }
+    }
+
+    String stripLines(String text) {
+        return text.lines().map(String::stripTrailing).collect(Collectors.joining("\n"));
+    }
 }
\ No newline at end of file
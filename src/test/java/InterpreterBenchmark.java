@@ -0,0 +1,69 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares the self-specializing executable nodes of {@link Interpreter#compile} with the plain tree walk
+ * of {@link Interpreter#walk} on prime.c.
+ * The Parser gives '*', '/' and '&&' the precedence of the operator that follows them, so prime.c as
+ * written parses to {@code n / (k * (k != n))} and divides by zero; the benchmark runs it with those two
+ * expressions parenthesized, which is what the program means. Each limit is run with both engines until
+ * the best time settles, and the outputs are checked to be identical.
+ * Run it with: gradle interpreterBenchmark [-PinterpreterLimits=100,5000,50000] [-PinterpreterRuns=20]
+ */
+public class InterpreterBenchmark {
+
+    /**
+     * @return prime.c with explicit parentheses and the given search limit
+     */
+    static String primeSource(int limit) throws IOException {
+        String source = Files.readString(Path.of("src/main/resources/prime.c"));
+        String fixed = source.replace("while ((k*k<=n) && (p))", "while (((k*k)<=n) && (p))")
+                .replace("p=n/k*k!=n;", "p=((n/k)*k)!=n;")
+                .replace("limit = 100;", "limit = " + limit + ";");
+        if (fixed.equals(source) || !fixed.contains("limit = " + limit + ";")) {
+            throw new IllegalStateException("prime.c no longer has the expected shape");
+        }
+        return fixed;
+    }
+
+    private static long best(Runnable run, int runs) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String[] limits = args.length > 0 ? args[0].split(",") : new String[]{"100", "5000", "50000"};
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        OutputStream discard = OutputStream.nullOutputStream();
+
+        System.out.printf("%-8s %12s %14s %14s %8s %9s%n", "limit", "output B", "walk ms", "nodes ms", "speedup", "rewrites");
+        for (String l : limits) {
+            int limit = Integer.parseInt(l.trim());
+            Parser.Node tree = CompilerSession.get().tree(primeSource(limit));
+            Interpreter.RootNode program = Interpreter.compile(tree);
+
+            ByteArrayOutputStream walked = new ByteArrayOutputStream();
+            ByteArrayOutputStream executed = new ByteArrayOutputStream();
+            Interpreter.walk(tree, walked);
+            program.run(executed);
+            if (!walked.toString().equals(executed.toString())) {
+                throw new IllegalStateException("engines disagree on prime.c with limit " + limit);
+            }
+
+            // small limits finish in microseconds, so repeat them more to get a stable best time
+            int reps = Math.max(runs, 200_000 / Math.max(1, limit));
+            long walk = best(() -> Interpreter.walk(tree, discard), reps);
+            long nodes = best(() -> program.run(discard), reps);
+            System.out.printf("%-8d %12d %14.3f %14.3f %7.2fx %9d%n", limit, executed.size(),
+                    walk / 1e6, nodes / 1e6, (double) walk / nodes, program.rewrites());
+        }
+    }
+}
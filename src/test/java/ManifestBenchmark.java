@@ -0,0 +1,54 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Times a no-op incremental build: loading a {@link BuildManifest} and checking every output of a
+ * batch that has not changed since it was recorded, which is the whole cost --incremental adds to a
+ * build with nothing to do. Creates the given number of small input/output pairs in a temp directory,
+ * records them once, then reports the best of several load-and-check rounds.
+ * Run it with: gradle manifestBenchmark [-PmanifestFiles=10000] [-PmanifestRuns=10]
+ */
+public class ManifestBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Path dir = Files.createTempDirectory("manifest-benchmark");
+        File[] inputs = new File[count];
+        File[] outputs = new File[count];
+        try {
+            File manifestFile = dir.resolve("manifest.tsv").toFile();
+            BuildManifest first = BuildManifest.load(manifestFile);
+            for (int i = 0; i < count; i++) {
+                inputs[i] = dir.resolve("prog" + i + ".c").toFile();
+                outputs[i] = dir.resolve("myLexedprog" + i + ".lex").toFile();
+                Files.writeString(inputs[i].toPath(), "count = " + i + ";\n");
+                Files.writeString(outputs[i].toPath(), "    1      1 Identifier      count\n");
+                first.record(inputs[i], outputs[i]);
+            }
+            first.save();
+
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < runs; r++) {
+                long start = System.nanoTime();
+                BuildManifest m = BuildManifest.load(manifestFile);
+                for (int i = 0; i < count; i++) {
+                    if (!m.isUpToDate(inputs[i], outputs[i])) {
+                        throw new IllegalStateException(inputs[i] + " reported stale in a no-op build");
+                    }
+                }
+                m.save();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("no-op incremental check of %d files: best %.1f ms of %d runs (%.1f us per file)%n",
+                    count, best / 1e6, runs, best / 1e3 / count);
+        } finally {
+            for (File f : dir.toFile().listFiles()) {
+                f.delete();
+            }
+            dir.toFile().delete();
+        }
+    }
+}
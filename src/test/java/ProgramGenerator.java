@@ -0,0 +1,220 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Seeded random program generator for the grammar Parser.stmt()/expr() accept:
+ * assignments, nested while/if/else, blocks, print with strings and expressions,
+ * putc, block comments and char literals.
+ * Output is written as a stream so files far larger than the heap can be produced.
+ * Besides the grammar, it respects the Lexer's quirks: binary '-' and '/' are always followed
+ * by a space, comments never contain '/', and strings and char literals never contain quotes.
+ * Usage: ProgramGenerator <output file> <size, e.g. 64K, 16M, 1G> [seed] [max depth] [identifiers]
+ */
+public class ProgramGenerator {
+    private static final String[] BINARY = {
+            "+", "- ", "*", "/ ", "%", "<", "<=", ">", ">=", "==", "!=", "&&", "||"
+    };
+    private static final String WORDS = "abcdefghijklmnopqrstuvwxyz ABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+
+    private final Random random;
+    private final int maxDepth;
+    private final int identifiers;
+    private Writer out;
+    private long written;
+
+    /**
+     * @param seed        seed for the random source; the same seed always gives the same program
+     * @param maxDepth    maximum nesting of while/if/block statements
+     * @param identifiers number of distinct variable names used
+     */
+    ProgramGenerator(long seed, int maxDepth, int identifiers) {
+        this.random = new Random(seed);
+        this.maxDepth = maxDepth;
+        this.identifiers = Math.max(1, identifiers);
+    }
+
+    /**
+     * writes top-level statements until at least targetBytes have been written
+     *
+     * @param out         destination, not closed
+     * @param targetBytes approximate size of the program
+     * @return the number of characters actually written
+     */
+    long generate(Writer out, long targetBytes) throws IOException {
+        this.out = out;
+        this.written = 0;
+        while (this.written < targetBytes) {
+            stmt(0, 0);
+        }
+        out.flush();
+        return this.written;
+    }
+
+    /**
+     * @return a whole program of roughly the given size, as a string
+     */
+    static String generate(long seed, int maxDepth, int identifiers, long targetBytes) {
+        StringWriter sw = new StringWriter((int) Math.min(Integer.MAX_VALUE - 8, targetBytes + 256));
+        try {
+            new ProgramGenerator(seed, maxDepth, identifiers).generate(sw, targetBytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sw.toString();
+    }
+
+    private void emit(String s) throws IOException {
+        this.out.write(s);
+        this.written += s.length();
+    }
+
+    private void indent(int level) throws IOException {
+        for (int i = 0; i < level; i++) {
+            emit("    ");
+        }
+    }
+
+    private String identifier() {
+        return "v" + this.random.nextInt(this.identifiers);
+    }
+
+    private String text(int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int n = 1 + this.random.nextInt(maxLength);
+        for (int i = 0; i < n; i++) {
+            sb.append(WORDS.charAt(this.random.nextInt(WORDS.length())));
+        }
+        return sb.toString();
+    }
+
+    private void stmt(int depth, int level) throws IOException {
+        boolean canNest = depth < this.maxDepth;
+        int choice = this.random.nextInt(canNest ? 100 : 70);
+        indent(level);
+        if (choice < 35) {
+            emit(identifier());
+            emit(" = ");
+            expr(0);
+            emit(";\n");
+        } else if (choice < 50) {
+            emit("print(");
+            int args = 1 + this.random.nextInt(3);
+            for (int i = 0; i < args; i++) {
+                if (i > 0) {
+                    emit(", ");
+                }
+                if (this.random.nextBoolean()) {
+                    emit("\"" + text(20) + (this.random.nextInt(4) == 0 ? "\\n" : "") + "\"");
+                } else {
+                    expr(0);
+                }
+            }
+            emit(");\n");
+        } else if (choice < 58) {
+            emit("putc(");
+            expr(0);
+            emit(");\n");
+        } else if (choice < 66) {
+            emit("/* " + text(40) + " */\n");
+        } else if (choice < 70) {
+            emit(";\n");
+        } else if (choice < 82) {
+            emit("while (");
+            expr(0);
+            emit(") ");
+            block(depth + 1, level);
+        } else if (choice < 94) {
+            emit("if (");
+            expr(0);
+            emit(") ");
+            block(depth + 1, level);
+            if (this.random.nextBoolean()) {
+                indent(level);
+                emit("else ");
+                block(depth + 1, level);
+            }
+        } else {
+            block(depth + 1, level);
+        }
+    }
+
+    private void block(int depth, int level) throws IOException {
+        emit("{\n");
+        int n = this.random.nextInt(4);
+        for (int i = 0; i < n; i++) {
+            stmt(depth, level + 1);
+        }
+        indent(level);
+        emit("}\n");
+    }
+
+    private void expr(int depth) throws IOException {
+        primary(depth);
+        int ops = depth > 2 ? 0 : this.random.nextInt(3);
+        for (int i = 0; i < ops; i++) {
+            emit(" ");
+            emit(BINARY[this.random.nextInt(BINARY.length)]);
+            emit(" ");
+            primary(depth);
+        }
+    }
+
+    private void primary(int depth) throws IOException {
+        int choice = this.random.nextInt(depth > 2 ? 70 : 100);
+        if (choice < 35) {
+            emit(identifier());
+        } else if (choice < 60) {
+            emit(String.valueOf(this.random.nextInt(1000)));
+        } else if (choice < 70) {
+            emit("'" + (char) ('a' + this.random.nextInt(26)) + "'");
+        } else if (choice < 85) {
+            emit("(");
+            expr(depth + 1);
+            emit(")");
+        } else if (choice < 93) {
+            emit("- ");
+            primary(depth + 1);
+        } else {
+            emit("!");
+            primary(depth + 1);
+        }
+    }
+
+    /**
+     * parses sizes such as 512, 64K, 16M or 1G
+     */
+    static long parseSize(String size) {
+        String s = size.trim().toUpperCase();
+        long unit = 1;
+        if (s.endsWith("K")) {
+            unit = 1L << 10;
+        } else if (s.endsWith("M")) {
+            unit = 1L << 20;
+        } else if (s.endsWith("G")) {
+            unit = 1L << 30;
+        }
+        if (unit != 1) {
+            s = s.substring(0, s.length() - 1);
+        }
+        return Long.parseLong(s) * unit;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("usage: ProgramGenerator <output file> <size> [seed] [max depth] [identifiers]");
+            System.exit(1);
+        }
+        long size = parseSize(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        int identifiers = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+        try (Writer w = new BufferedWriter(new FileWriter(args[0]), 1 << 16)) {
+            long written = new ProgramGenerator(seed, depth, identifiers).generate(w, size);
+            System.out.println("wrote " + written + " bytes to " + args[0]);
+        }
+    }
+}
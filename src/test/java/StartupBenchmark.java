@@ -0,0 +1,106 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Repeatable cold-start benchmark for the CLI entry points.
+ * Launches a fresh JVM running Lexer on hello.t, once with the default JDK archive and once with
+ * the AppCDS archive produced by the cdsArchive Gradle task, and reports the time until the first
+ * token reaches stdout and the total wall time of the process.
+ * Run it with: gradle startupBenchmark [-PstartupRuns=20]
+ */
+public class StartupBenchmark {
+    private static final String INPUT = "hello.t";
+    private static final int WARMUP_RUNS = 3;
+
+    /**
+     * Timings of a single JVM launch, in nanoseconds.
+     */
+    static class Sample {
+        final long firstToken;
+        final long wall;
+
+        Sample(long firstToken, long wall) {
+            this.firstToken = firstToken;
+            this.wall = wall;
+        }
+    }
+
+    /**
+     * Launches Lexer in a new JVM and times it.
+     *
+     * @param command the java command line, including any archive flags
+     * @return the measured sample
+     */
+    static Sample run(List<String> command) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(command).redirectErrorStream(true);
+        long start = System.nanoTime();
+        Process p = pb.start();
+        long firstToken = -1;
+        try (BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = out.readLine()) != null) {
+                if (firstToken < 0) {
+                    firstToken = System.nanoTime() - start;
+                }
+            }
+        }
+        int exit = p.waitFor();
+        long wall = System.nanoTime() - start;
+        if (exit != 0) {
+            throw new IllegalStateException("Lexer exited with status " + exit + ": " + command);
+        }
+        return new Sample(firstToken, wall);
+    }
+
+    static long median(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /**
+     * Runs one configuration and prints its median and best timings.
+     */
+    static void measure(String label, List<String> command, int runs) throws IOException, InterruptedException {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run(command);
+        }
+        long[] firstToken = new long[runs];
+        long[] wall = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            Sample s = run(command);
+            firstToken[i] = s.firstToken;
+            wall[i] = s.wall;
+        }
+        System.out.printf("%-12s first token: median %7.2f ms, min %7.2f ms | wall: median %7.2f ms, min %7.2f ms%n",
+                label, median(firstToken) / 1e6, Arrays.stream(firstToken).min().getAsLong() / 1e6,
+                median(wall) / 1e6, Arrays.stream(wall).min().getAsLong() / 1e6);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("usage: StartupBenchmark <compiler jar> <cds archive> [runs]");
+            System.exit(1);
+        }
+        String jar = args[0];
+        File archive = new File(args[1]);
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+
+        List<String> plain = new ArrayList<>(List.of(java, "-cp", jar, "Lexer", INPUT));
+        measure("no archive", plain, runs);
+
+        if (!archive.isFile()) {
+            System.out.println("no AppCDS archive at " + archive + ", run the cdsArchive task first");
+            return;
+        }
+        List<String> shared = new ArrayList<>(List.of(java, "-Xshare:auto",
+                "-XX:SharedArchiveFile=" + archive.getPath(), "-cp", jar, "Lexer", INPUT));
+        measure("AppCDS", shared, runs);
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+/**
+ * Throughput and peak-heap regression suite for Lexer and Parser over generated programs.
+ * For each size a program is produced by {@link ProgramGenerator} and compiled through Lexer.lexFile and
+ * Parser.parseFile, the same calls Main makes, so the timings cover reading, lexing and writing the .lex,
+ * then streaming its tokens through a TokenStore and a ParWriter into the .par; console output is discarded.
+ * Those methods read and write src/main/resources relative to the working directory, so the benchmark
+ * refuses to run in the project itself; gradle runs it in build/throughput.
+ * <p>
+ * Absolute MB/s only hold on the machine they were measured on. Every size therefore also runs a reference
+ * workload over the same source, reading it line by line, splitting it on whitespace and writing the pieces
+ * out, and each phase is gated on its throughput as a fraction of the reference's. Peak heap is gated per
+ * source byte. The run fails when a ratio drops or peak heap grows by more than the threshold compared with
+ * the checked-in baseline, and when there is no baseline to compare with. --update skips the comparison
+ * and writes the results as a new baseline under build/, to be copied over the checked-in one by hand.
+ * Run with: gradle throughputCheck [-PthroughputSizes=1K,1M,16M] [-PthroughputThreshold=0.25]
+ * [-PupdateThroughputBaseline]
+ */
+public class ThroughputBenchmark {
+
+    /**
+     * Best-of-N measurements for one input size.
+     */
+    static class Result {
+        final String size;
+        final long bytes;
+        double referenceMBps;
+        double lexMBps;
+        double parseMBps;
+        long peakHeap = Long.MAX_VALUE;
+
+        Result(String size, long bytes) {
+            this.size = size;
+            this.bytes = bytes;
+        }
+
+        double lexRatio() {
+            return this.lexMBps / this.referenceMBps;
+        }
+
+        double parseRatio() {
+            return this.parseMBps / this.referenceMBps;
+        }
+
+        double heapPerByte() {
+            return (double) this.peakHeap / this.bytes;
+        }
+
+        void store(Properties p) {
+            p.setProperty(this.size + ".lex.ratio", String.format("%.4f", lexRatio()));
+            p.setProperty(this.size + ".parse.ratio", String.format("%.4f", parseRatio()));
+            p.setProperty(this.size + ".peakHeap.perByte", String.format("%.2f", heapPerByte()));
+        }
+    }
+
+    private static final PrintStream STDOUT = System.out;
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    private static double mbps(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    private static List<MemoryPoolMXBean> heapPools() {
+        List<MemoryPoolMXBean> pools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.isValid()) {
+                pools.add(pool);
+            }
+        }
+        return pools;
+    }
+
+    private static long peakHeap(List<MemoryPoolMXBean> pools) {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : pools) {
+            peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * the reference workload: the same source read line by line, split on whitespace and written out again
+     */
+    static long reference(File source, File out) throws Exception {
+        long pieces = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(source));
+             Writer w = new BufferedWriter(new FileWriter(out))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                StringTokenizer st = new StringTokenizer(line);
+                while (st.hasMoreTokens()) {
+                    w.write(st.nextToken());
+                    w.write('\n');
+                    pieces++;
+                }
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * compiles one program through lexFile and parseFile, keeping the best time of each phase in the result
+     */
+    static void runOnce(String name, File source, File scratch, Result r, List<MemoryPoolMXBean> pools)
+            throws Exception {
+        System.gc();
+        for (MemoryPoolMXBean pool : pools) {
+            pool.resetPeakUsage();
+        }
+
+        long start = System.nanoTime();
+        if (reference(source, scratch) == 0 && r.bytes > 1) {
+            throw new IllegalStateException("reference workload read nothing for " + r.size);
+        }
+        long referenceNanos = System.nanoTime() - start;
+
+        CompileBudget budget = CompileBudget.defaults().start();
+        System.setOut(DISCARD);
+        long lexNanos;
+        long parseNanos;
+        try {
+            start = System.nanoTime();
+            Lexer.lexFile(name, budget);
+            lexNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Parser.parseFile(Lexer.outputFile(name).getName(), budget);
+            parseNanos = System.nanoTime() - start;
+        } finally {
+            System.setOut(STDOUT);
+        }
+
+        r.peakHeap = Math.min(r.peakHeap, peakHeap(pools));
+        r.referenceMBps = Math.max(r.referenceMBps, mbps(r.bytes, referenceNanos));
+        r.lexMBps = Math.max(r.lexMBps, mbps(r.bytes, lexNanos));
+        r.parseMBps = Math.max(r.parseMBps, mbps(r.bytes, parseNanos));
+    }
+
+    /**
+     * compares a result with the baseline and describes every regression past the threshold
+     */
+    static List<String> regressions(Result r, Properties baseline, double threshold) {
+        List<String> failures = new ArrayList<>();
+        checkFloor(failures, r.size + ".lex.ratio", r.lexRatio(), baseline, threshold);
+        checkFloor(failures, r.size + ".parse.ratio", r.parseRatio(), baseline, threshold);
+        String key = r.size + ".peakHeap.perByte";
+        if (baseline.containsKey(key)) {
+            double expected = Double.parseDouble(baseline.getProperty(key));
+            if (r.heapPerByte() > expected * (1 + threshold)) {
+                failures.add(String.format("%s: peak heap of %.2f bytes per source byte exceeds baseline %.2f "
+                        + "by more than %.0f%%", key, r.heapPerByte(), expected, threshold * 100));
+            }
+        }
+        return failures;
+    }
+
+    private static void checkFloor(List<String> failures, String key, double actual, Properties baseline,
+                                   double threshold) {
+        if (!baseline.containsKey(key)) {
+            return;
+        }
+        double expected = Double.parseDouble(baseline.getProperty(key));
+        if (actual < expected * (1 - threshold)) {
+            failures.add(String.format("%s: %.3fx the reference throughput is below baseline %.3fx by more than %.0f%%",
+                    key, actual, expected, threshold * 100));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] sizes = {"1K", "64K", "1M", "8M"};
+        double threshold = 0.25;
+        File baselineFile = new File("src/test/resources/throughput-baseline.properties");
+        File reportFile = new File("build/reports/throughput.properties");
+        File updateFile = new File("build/reports/throughput-baseline.properties");
+        boolean update = false;
+        int runs = 3;
+        long seed = 42;
+        int depth = 4;
+        int identifiers = 64;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sizes": sizes = args[++i].split(","); break;
+                case "--threshold": threshold = Double.parseDouble(args[++i]); break;
+                case "--baseline": baselineFile = new File(args[++i]); break;
+                case "--report": reportFile = new File(args[++i]); break;
+                case "--runs": runs = Integer.parseInt(args[++i]); break;
+                case "--seed": seed = Long.parseLong(args[++i]); break;
+                case "--depth": depth = Integer.parseInt(args[++i]); break;
+                case "--identifiers": identifiers = Integer.parseInt(args[++i]); break;
+                case "--update": update = true; break;
+                case "--update-to": updateFile = new File(args[++i]); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        if (new File("src/main/java").isDirectory()) {
+            System.out.println("ThroughputBenchmark writes programs into src/main/resources of its working directory;"
+                    + " run it from a scratch directory (gradle throughputCheck uses build/throughput)");
+            System.exit(1);
+        }
+
+        Properties baseline = new Properties();
+        if (baselineFile.isFile()) {
+            try (FileReader r = new FileReader(baselineFile)) {
+                baseline.load(r);
+            }
+        } else if (!update) {
+            System.out.println("no throughput baseline at " + baselineFile
+                    + "; run with --update (-PupdateThroughputBaseline) and check in the file it writes");
+            System.exit(1);
+        }
+
+        List<MemoryPoolMXBean> pools = heapPools();
+        File resources = new File("src/main/resources");
+        resources.mkdirs();
+        File scratch = File.createTempFile("reference", ".txt");
+        scratch.deleteOnExit();
+
+        // warm up the JIT on a mid-sized program so the small sizes are not measured interpreted
+        File warmup = write(resources, "throughput-warmup.c", ProgramGenerator.generate(seed + 1, depth, identifiers, 256 * 1024));
+        for (int i = 0; i < 5; i++) {
+            runOnce(warmup.getName(), warmup, scratch, new Result("warmup", warmup.length()), pools);
+        }
+
+        Properties report = new Properties();
+        List<String> failures = new ArrayList<>();
+        System.out.printf("%-8s %12s %10s %10s %10s %9s %9s %12s%n", "size", "bytes", "ref MB/s", "lex MB/s",
+                "parse MB/s", "lex/ref", "parse/ref", "heap/byte");
+        for (String size : sizes) {
+            long target = ProgramGenerator.parseSize(size);
+            File source = write(resources, "throughput-" + size.trim() + ".c",
+                    ProgramGenerator.generate(seed, depth, identifiers, target));
+            Result r = new Result(size.trim(), source.length());
+            // small inputs finish in microseconds, so repeat them more to get a stable best time
+            long reps = Math.max(runs, Math.min(200, (1L << 20) / Math.max(1, target)));
+            for (int i = 0; i < reps; i++) {
+                runOnce(source.getName(), source, scratch, r, pools);
+            }
+            System.out.printf("%-8s %12d %10.2f %10.2f %10.2f %9.3f %9.3f %12.2f%n", r.size, r.bytes,
+                    r.referenceMBps, r.lexMBps, r.parseMBps, r.lexRatio(), r.parseRatio(), r.heapPerByte());
+            r.store(report);
+            failures.addAll(regressions(r, baseline, threshold));
+        }
+
+        reportFile.getAbsoluteFile().getParentFile().mkdirs();
+        try (FileWriter w = new FileWriter(reportFile)) {
+            report.store(w, "Lexer/Parser throughput relative to the reference workload");
+        }
+        if (update) {
+            updateFile.getAbsoluteFile().getParentFile().mkdirs();
+            try (FileWriter w = new FileWriter(updateFile)) {
+                report.store(w, "Lexer/Parser throughput baseline, regenerate with -PupdateThroughputBaseline");
+            }
+            System.out.println("new baseline written to " + updateFile + "; copy it to " + baselineFile + " to adopt it");
+            return;
+        }
+        if (!failures.isEmpty()) {
+            System.out.println("Throughput regressions:");
+            for (String f : failures) {
+                System.out.println("  " + f);
+            }
+            System.exit(1);
+        }
+        System.out.println("no regressions past " + Math.round(threshold * 100) + "% of " + baselineFile);
+    }
+
+    private static File write(File dir, String name, String program) throws Exception {
+        File f = new File(dir, name);
+        try (FileWriter w = new FileWriter(f)) {
+            w.write(program);
+        }
+        return f;
+    }
+}
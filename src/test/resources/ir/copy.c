@@ -0,0 +1,4 @@
+b = a;
+c = a * b;
+d = a * a;
+print(c + d, "a  b\t\n");
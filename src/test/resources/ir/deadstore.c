@@ -0,0 +1,6 @@
+x = 1;
+x = a;
+while (x < 10) {
+    x = x + 1;
+}
+print(x);
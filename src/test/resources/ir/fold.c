@@ -0,0 +1,2 @@
+x = (2 * 3) + 4;
+print(x, "\n");